@@ -6,9 +6,60 @@ package com.duvitech.testcodec;
 
 import java.nio.ByteBuffer;
 import java.lang.AutoCloseable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * <p>A decoded frame, shaped after {@link android.media.Image}.</p>
+ *
+ * <p>A CodecImage can be shared by several consumers. It starts out with a
+ * single reference owned by its creator; every additional consumer calls
+ * {@link #retain} and every consumer, the creator included, calls
+ * {@link #release} when done. The last release {@link #close closes} the image,
+ * which hands the underlying decoder output or buffer back to its source.</p>
+ */
 public abstract class CodecImage implements AutoCloseable {
+    private static final String TAG = "CodecImage";
+
+    private static volatile boolean sTrackLeaks;
+    private static final Set<CodecImage> sUnreleased =
+            Collections.newSetFromMap(new ConcurrentHashMap<CodecImage, Boolean>());
+
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private volatile Throwable mAllocationSite;
+
+    /**
+     * Record a newly created image for leak tracking, if it is enabled.
+     * Sources call this once the image is fully constructed, so an image whose
+     * constructor failed is never reported.
+     *
+     * @return {@code image}, for chaining.
+     */
+    static <T extends CodecImage> T track(T image) {
+        if (sTrackLeaks) {
+            CodecImage tracked = image;
+            tracked.mAllocationSite = new Throwable("CodecImage allocated here");
+            sUnreleased.add(tracked);
+        }
+        return image;
+    }
+
+    /**
+     * Stop tracking this image as unreleased. Every {@link #close}
+     * implementation calls this, so images closed without going through
+     * {@link #release} are not reported as leaks.
+     */
+    protected final void untrack() {
+        sUnreleased.remove(this);
+    }
+
     /**
      * Get the format for this image. This format determines the number of
      * ByteBuffers needed to represent the image, and the general layout of the
@@ -79,7 +130,11 @@ public abstract class CodecImage implements AutoCloseable {
      */
     public abstract long getTimestamp();
 
-    private Rect mCropRect;
+    private boolean mHasCropRect;
+    private int mCropLeft;
+    private int mCropTop;
+    private int mCropRight;
+    private int mCropBottom;
 
     /**
      * Get the crop rectangle associated with this frame.
@@ -88,11 +143,8 @@ public abstract class CodecImage implements AutoCloseable {
      * using coordinates in the largest-resolution plane.
      */
     public Rect getCropRect() {
-        if (mCropRect == null) {
-            return new Rect(0, 0, getWidth(), getHeight());
-        } else {
-            return new Rect(mCropRect); // return a copy
-        }
+        return new Rect(getCropLeft(), getCropTop(),
+                getCropLeft() + getCropWidth(), getCropTop() + getCropHeight());
     }
 
     /**
@@ -102,11 +154,43 @@ public abstract class CodecImage implements AutoCloseable {
      * using coordinates in the largest-resolution plane.
      */
     public void setCropRect(Rect cropRect) {
-        if (cropRect != null) {
-            cropRect = new Rect(cropRect);  // make a copy
-            cropRect.intersect(0, 0, getWidth(), getHeight());
+        if (cropRect == null) {
+            mHasCropRect = false;
+        } else {
+            setCropRect(cropRect.left, cropRect.top, cropRect.right, cropRect.bottom);
         }
-        mCropRect = cropRect;
+    }
+
+    /**
+     * Set the crop rectangle from its edges. Same as {@link #setCropRect(Rect)},
+     * but usable where {@link Rect} is only a stub, such as in host unit tests.
+     */
+    public void setCropRect(int left, int top, int right, int bottom) {
+        mCropLeft = Math.max(0, left);
+        mCropTop = Math.max(0, top);
+        mCropRight = Math.max(mCropLeft, Math.min(getWidth(), right));
+        mCropBottom = Math.max(mCropTop, Math.min(getHeight(), bottom));
+        mHasCropRect = true;
+    }
+
+    /** Left edge of the crop rectangle. */
+    public int getCropLeft() {
+        return mHasCropRect ? mCropLeft : 0;
+    }
+
+    /** Top edge of the crop rectangle. */
+    public int getCropTop() {
+        return mHasCropRect ? mCropTop : 0;
+    }
+
+    /** Width of the crop rectangle. */
+    public int getCropWidth() {
+        return mHasCropRect ? mCropRight - mCropLeft : getWidth();
+    }
+
+    /** Height of the crop rectangle. */
+    public int getCropHeight() {
+        return mHasCropRect ? mCropBottom - mCropTop : getHeight();
     }
 
     /**
@@ -115,14 +199,100 @@ public abstract class CodecImage implements AutoCloseable {
      */
     public abstract Plane[] getPlanes();
 
+    /**
+     * Add a reference for another consumer of this image.
+     *
+     * @return this image, for chaining.
+     * @throws IllegalStateException if the image was already fully released.
+     */
+    public CodecImage retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("CodecImage is already released");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drop a reference to this image. When the last reference is dropped the
+     * image is {@link #close closed}.
+     *
+     * @throws IllegalStateException if the image was already fully released.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("CodecImage is already released");
+        }
+        if (count == 0) {
+            untrack();
+            close();
+        }
+    }
+
+    /**
+     * Get the number of outstanding references to this image.
+     */
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * Enable or disable leak tracking. While enabled, every image a decoder or
+     * spill store hands out is recorded with its allocation site until its last
+     * reference is {@link #release released} or it is {@link #close closed}.
+     */
+    public static void setLeakTrackingEnabled(boolean enabled) {
+        sTrackLeaks = enabled;
+        if (!enabled) {
+            sUnreleased.clear();
+        }
+    }
+
+    /**
+     * Get the allocation sites of tracked images that were never fully released.
+     */
+    public static List<Throwable> getUnreleasedImages() {
+        ArrayList<Throwable> sites = new ArrayList<Throwable>();
+        for (CodecImage image : sUnreleased) {
+            sites.add(image.mAllocationSite);
+        }
+        return sites;
+    }
+
+    /**
+     * Log every tracked image that was never fully released.
+     *
+     * @return The number of leaked images.
+     */
+    public static int reportLeaks() {
+        List<Throwable> sites = getUnreleasedImages();
+        for (Throwable site : sites) {
+            Log.w(TAG, "CodecImage was never released", site);
+        }
+        return sites.size();
+    }
+
     /**
      * Free up this frame for reuse.
      * <p>
+     * Shared images must not be closed directly; use {@link #release} so the
+     * frame is only freed once every consumer is done with it.
+     * </p>
+     * <p>
      * After calling this method, calling any methods on this {@code CodecImage} will
      * result in an {@link IllegalStateException}, and attempting to read from
      * {@link ByteBuffer ByteBuffers} returned by an earlier
      * {@link Plane#getBuffer} call will have undefined behavior.
      * </p>
+     * <p>
+     * Implementations must call {@link #untrack}.
+     * </p>
      */
     @Override
     public abstract void close();
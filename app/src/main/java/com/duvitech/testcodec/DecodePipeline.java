@@ -0,0 +1,279 @@
+package com.duvitech.testcodec;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Feeds samples to a {@link FrameDecoder}, drains the decoded frames, validates
+ * them and hands them to a {@link FrameListener}.
+ * <p>
+ * The pipeline only depends on the {@link FrameDecoder} and {@link SampleSource}
+ * abstractions, so it runs the same against a device codec and against a
+ * {@link SyntheticDecoder} on the host.
+ * </p>
+ */
+public class DecodePipeline {
+    private static final String TAG = "DecodePipeline";
+
+    /** Timeout used when dequeuing input and output buffers. */
+    public static final long DEFAULT_TIMEOUT_US = 10000;
+
+    /**
+     * Receives every decoded frame.
+     */
+    public interface FrameListener {
+        /**
+         * Called for every decoded frame, in decode order. The pipeline releases
+         * its reference to the frame once this returns; a listener that keeps
+         * using the frame afterwards must {@link CodecImage#retain retain} it.
+         *
+         * @param frame The decoded frame.
+         * @param data The frame packed by validation, or null if validation is
+         *             disabled. It goes back to the pool once this returns.
+         * @param frameNumber The index of the frame in the output.
+         * @param presentationTimeUs The presentation time of the frame.
+         */
+        void onFrame(CodecImage frame, byte[] data, int frameNumber, long presentationTimeUs)
+                throws Exception;
+    }
+
+    private final FrameDecoder mDecoder;
+    private final SampleSource mSource;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final FramePool mPool;
+    private FrameListener mListener;
+    private boolean mValidate = true;
+
+    private int mFrameCount;
+    private long mElapsedNs;
+    private long mSetupNs = -1;
+    private long mBytesCopied;
+    private long mAllocations;
+    // queue time of every input still in the decoder, by presentation time
+    private final HashMap<Long, Long> mQueueTimes = new HashMap<Long, Long>();
+    private final LatencyStats mLatencies = new LatencyStats();
+    private final LatencyStats mIntervals = new LatencyStats();
+    private long mLastOutputNs = -1;
+
+    /**
+     * @param decoder The decoder, configured but not started.
+     * @param source The samples to decode.
+     * @param width The expected frame width.
+     * @param height The expected frame height.
+     * @param format The expected image format.
+     * @param pool The pool validation copies the frames into.
+     */
+    public DecodePipeline(FrameDecoder decoder, SampleSource source,
+            int width, int height, int format, FramePool pool) {
+        mDecoder = decoder;
+        mSource = source;
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mPool = pool;
+    }
+
+    public void setFrameListener(FrameListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Enable or disable the validation of every frame. Validation checks the
+     * format and size and copies the frame out of its planes; the copy is
+     * handed to the {@link FrameListener}.
+     */
+    public void setValidationEnabled(boolean validate) {
+        mValidate = validate;
+    }
+
+    /**
+     * Start the decoder and decode until the end of the stream, or until
+     * {@code maxFrames} frames were output. The decoder is left running.
+     *
+     * @return The number of frames decoded.
+     */
+    public int run(int maxFrames) throws Exception {
+        long start = System.nanoTime();
+        long allocations = mPool.getAllocationCount();
+        mDecoder.start();
+        FrameDecoder.BufferInfo info = new FrameDecoder.BufferInfo();
+        boolean sawInputEOS = false;
+        boolean sawOutputEOS = false;
+        int outputFrameCount = 0;
+        try {
+            while (!sawOutputEOS && outputFrameCount < maxFrames) {
+                Log.v(TAG, "loop:" + outputFrameCount);
+                // Feed input frame.
+                if (!sawInputEOS) {
+                    int inputBufIndex = mDecoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
+                    if (inputBufIndex >= 0) {
+                        ByteBuffer dstBuf = mDecoder.getInputBuffer(inputBufIndex);
+                        int sampleSize = mSource.readSampleData(dstBuf, 0 /* offset */);
+                        Log.v(TAG, "queue a input buffer, idx/size: "
+                                + inputBufIndex + "/" + sampleSize);
+                        long presentationTimeUs = 0;
+                        if (sampleSize < 0) {
+                            Log.v(TAG, "saw input EOS.");
+                            sawInputEOS = true;
+                            sampleSize = 0;
+                        } else {
+                            presentationTimeUs = mSource.getSampleTime();
+                        }
+                        if (!sawInputEOS) {
+                            mQueueTimes.put(presentationTimeUs, System.nanoTime());
+                        }
+                        mDecoder.queueInputBuffer(
+                                inputBufIndex,
+                                0 /* offset */,
+                                sampleSize,
+                                presentationTimeUs,
+                                sawInputEOS ? FrameDecoder.BUFFER_FLAG_END_OF_STREAM : 0);
+                        if (!sawInputEOS) {
+                            mSource.advance();
+                        }
+                    }
+                }
+                // Get output frame
+                int res = mDecoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
+                Log.v(TAG, "got a buffer: " + info.size + "/" + res);
+                if (res == FrameDecoder.INFO_TRY_AGAIN_LATER) {
+                    // no output available yet
+                    Log.v(TAG, "no output frame available");
+                } else if (res == FrameDecoder.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    // output images are fetched by index, nothing to update
+                    Log.v(TAG, "decoder output buffers changed");
+                } else if (res == FrameDecoder.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // this happens before the first frame is returned.
+                    Log.v(TAG, "decoder output format changed");
+                } else if (res < 0) {
+                    // Should be decoding error.
+                    throw new IllegalStateException(
+                            "unexpected result from decoder.dequeueOutputBuffer: " + res);
+                } else {
+                    if ((info.flags & FrameDecoder.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        sawOutputEOS = true;
+                    }
+                    // Some decoders output a 0-sized buffer at the end. Ignore those.
+                    if (info.size != 0) {
+                        recordOutput(info.presentationTimeUs, start);
+                        onFrame(mDecoder.getOutputImage(res), outputFrameCount++,
+                                info.presentationTimeUs);
+                    } else {
+                        mDecoder.releaseOutputBuffer(res);
+                    }
+                }
+            }
+        } finally {
+            mFrameCount += outputFrameCount;
+            mElapsedNs += System.nanoTime() - start;
+            mAllocations += mPool.getAllocationCount() - allocations;
+            mQueueTimes.clear();
+            mLastOutputNs = -1;
+        }
+        return outputFrameCount;
+    }
+
+    private void recordOutput(long presentationTimeUs, long runStartNs) {
+        long now = System.nanoTime();
+        if (mSetupNs < 0) {
+            mSetupNs = now - runStartNs;
+        }
+        Long queuedNs = mQueueTimes.remove(presentationTimeUs);
+        if (queuedNs != null) {
+            mLatencies.add(now - queuedNs);
+        }
+        if (mLastOutputNs >= 0) {
+            mIntervals.add(now - mLastOutputNs);
+        }
+        mLastOutputNs = now;
+    }
+
+    private void onFrame(CodecImage frame, int frameNumber, long presentationTimeUs)
+            throws Exception {
+        byte[] data = null;
+        try {
+            if (mValidate) {
+                data = validateFrame(frame);
+            }
+            if (mListener != null) {
+                mListener.onFrame(frame, data, frameNumber, presentationTimeUs);
+            }
+        } finally {
+            mPool.release(data);
+            frame.release();
+        }
+    }
+
+    /**
+     * Check the format and size of a frame and pack it.
+     *
+     * @return The packed frame, to be given back to the pool.
+     */
+    private byte[] validateFrame(CodecImage frame) throws InterruptedException {
+        if (frame.getFormat() != mFormat) {
+            throw new IllegalStateException("Format doesn't match: expected " + mFormat
+                    + ", got " + frame.getFormat());
+        }
+        if (frame.getCropWidth() != mWidth || frame.getCropHeight() != mHeight) {
+            throw new IllegalStateException("Size doesn't match: expected " + mWidth + "x"
+                    + mHeight + ", got " + frame.getCropWidth() + "x" + frame.getCropHeight());
+        }
+        byte[] data = FrameExtractor.extract(frame, mPool);
+        int expectedSize = FrameExtractor.getFrameSize(mWidth, mHeight, mFormat);
+        if (data.length != expectedSize) {
+            mPool.release(data);
+            throw new IllegalStateException("Yuv data doesn't match: expected "
+                    + expectedSize + " bytes, got " + data.length);
+        }
+        mBytesCopied += data.length;
+        return data;
+    }
+
+    /** Number of frames decoded by all runs. */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /** Wall time of all runs, in nanoseconds. */
+    public long getElapsedNs() {
+        return mElapsedNs;
+    }
+
+    /**
+     * Time from the start of the first run to its first decoded frame, which
+     * covers starting the decoder and filling its pipeline. -1 if no frame was
+     * decoded yet.
+     */
+    public long getSetupNs() {
+        return mSetupNs;
+    }
+
+    /** Time from queuing each input sample to getting its decoded frame. */
+    public LatencyStats getFrameLatencies() {
+        return mLatencies;
+    }
+
+    /** Time between consecutive decoded frames. */
+    public LatencyStats getFrameIntervals() {
+        return mIntervals;
+    }
+
+    /** Number of frame buffers the pool had to allocate during all runs. */
+    public long getAllocationCount() {
+        return mAllocations;
+    }
+
+    /** Bytes copied out of the decoder planes by validation. */
+    public long getBytesCopied() {
+        return mBytesCopied;
+    }
+
+    /** Decoded frames per second over all runs. */
+    public double getFramesPerSecond() {
+        return mElapsedNs > 0 ? mFrameCount * 1e9 / mElapsedNs : 0;
+    }
+}
@@ -0,0 +1,80 @@
+package com.duvitech.testcodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a video decoder the decode pipeline drives, shaped after
+ * {@link android.media.MediaCodec MediaCodec} in synchronous mode.
+ * <p>
+ * {@link MediaCodecDecoder} implements it on top of a real codec, and
+ * {@link SyntheticDecoder} is a deterministic software stand-in which lets the
+ * pipeline run on a plain JVM.
+ * </p>
+ */
+public interface FrameDecoder {
+    /** No buffer is available before the timeout expired. */
+    int INFO_TRY_AGAIN_LATER = -1;
+    /** The output format changed; this happens before the first frame. */
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    /** The output buffers changed; indices seen before are no longer valid. */
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+    /** Marks the last input buffer, and the last output buffer. */
+    int BUFFER_FLAG_END_OF_STREAM = 4;
+
+    /**
+     * Metadata of a dequeued output buffer.
+     */
+    class BufferInfo {
+        public int offset;
+        public int size;
+        public long presentationTimeUs;
+        public int flags;
+
+        public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+            offset = newOffset;
+            size = newSize;
+            presentationTimeUs = newTimeUs;
+            flags = newFlags;
+        }
+    }
+
+    /** Name of the underlying codec. */
+    String getName();
+
+    /** Start decoding; the decoder must already be configured. */
+    void start();
+
+    /**
+     * @return The index of a free input buffer, or {@link #INFO_TRY_AGAIN_LATER}.
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /** The input buffer at {@code index}, cleared and ready to be filled. */
+    ByteBuffer getInputBuffer(int index);
+
+    /** Submit a filled input buffer for decoding. */
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return The index of a decoded output buffer, or one of the {@code INFO_}
+     *         constants.
+     */
+    int dequeueOutputBuffer(BufferInfo info, long timeoutUs);
+
+    /**
+     * Get the decoded frame of an output buffer. The caller owns the returned
+     * image; the output buffer goes back to the decoder when the last reference
+     * to the image is {@link CodecImage#release released}, so
+     * {@link #releaseOutputBuffer} must not be called for it.
+     */
+    CodecImage getOutputImage(int index) throws InterruptedException;
+
+    /** Give back an output buffer whose frame is not needed. */
+    void releaseOutputBuffer(int index);
+
+    /** Stop decoding. */
+    void stop();
+
+    /** Free the decoder. */
+    void release();
+}
@@ -0,0 +1,255 @@
+package com.duvitech.testcodec;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copies the planes of a decoded frame into a contiguous, unpadded byte array.
+ * <p>
+ * For YUV_420_888/NV21/YV12 the packed frame holds the Y plane first, followed
+ * by the U(Cb) and V(Cr) planes at half width and height (xstride = width,
+ * ystride = height for chroma and luma components), whatever the row and pixel
+ * strides of the source planes are.
+ * </p>
+ * <p>
+ * Large frames are copied in parallel: every plane is split into row bands
+ * which are copied concurrently on the {@link FrameWorkers} pool, each into its
+ * own region of the output. Below {@link #DEFAULT_PARALLEL_MIN_PIXELS} the fork
+ * and join costs more than it saves, so smaller frames are copied on the
+ * calling thread.
+ * </p>
+ */
+public final class FrameExtractor {
+    /** Smallest frame, in pixels, copied in parallel by default; 1440p and up. */
+    public static final int DEFAULT_PARALLEL_MIN_PIXELS = 2560 * 1440;
+    // smallest band of luma rows worth a task of its own
+    private static final int MIN_BAND_ROWS = 64;
+
+    private FrameExtractor() {
+    }
+
+    /**
+     * Whether the format is one of the YUV 4:2:0 formats video decoders output.
+     */
+    public static boolean isYuv420(int format) {
+        return format == ImageFormat.YUV_420_888
+                || format == ImageFormat.NV21
+                || format == ImageFormat.YV12;
+    }
+
+    /**
+     * Size of a packed frame in bytes.
+     */
+    public static int getFrameSize(int width, int height, int format) {
+        checkYuv420(format);
+        return width * height * 12 / 8;
+    }
+
+    /**
+     * Pack the cropped content of an image into a buffer from the pool. The
+     * buffer must be given back to the pool once the caller is done with it.
+     */
+    public static byte[] extract(CodecImage image, FramePool pool) throws InterruptedException {
+        byte[] data = pool.acquire(
+                getFrameSize(image.getCropWidth(), image.getCropHeight(), image.getFormat()));
+        boolean ok = false;
+        try {
+            extract(image, data);
+            ok = true;
+        } finally {
+            if (!ok) {
+                pool.release(data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Pack the cropped content of an image into {@code data}.
+     *
+     * @return The number of bytes copied.
+     */
+    public static int extract(CodecImage image, byte[] data) {
+        int format = image.getFormat();
+        checkYuv420(format);
+        CodecImage.Plane[] planes = image.getPlanes();
+        if (planes == null || planes.length != 3) {
+            throw new IllegalArgumentException("YUV420 format images should have 3 planes");
+        }
+        int left = image.getCropLeft();
+        int top = image.getCropTop();
+        int width = image.getCropWidth();
+        int height = image.getCropHeight();
+        if (data.length < getFrameSize(width, height, format)) {
+            throw new IllegalArgumentException("buffer of " + data.length
+                    + " bytes is too small for a " + width + "x" + height + " frame");
+        }
+        ByteBuffer[] buffers = new ByteBuffer[planes.length];
+        int[] rowStrides = new int[planes.length];
+        int[] pixelStrides = new int[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            buffers[i] = planes[i].getBuffer();
+            rowStrides[i] = planes[i].getRowStride();
+            pixelStrides[i] = planes[i].getPixelStride();
+        }
+        return extractPlanes(buffers, rowStrides, pixelStrides, left, top, width, height,
+                data, FrameWorkers.getPool(), DEFAULT_PARALLEL_MIN_PIXELS);
+    }
+
+    /**
+     * Pack the cropped region of the three planes of a YUV 4:2:0 frame into
+     * {@code data}, with the chroma planes at half the luma resolution.
+     *
+     * @param pool The pool the row bands are copied on.
+     * @param minParallelPixels Frames with fewer pixels, or a pool of a single
+     *                          worker, are copied on the calling thread.
+     * @return The number of bytes copied.
+     */
+    static int extractPlanes(ByteBuffer[] buffers, int[] rowStrides, int[] pixelStrides,
+            int left, int top, int width, int height, byte[] data,
+            ForkJoinPool pool, int minParallelPixels) {
+        int bands = 1;
+        if ((long) width * height >= minParallelPixels) {
+            bands = Math.max(1, Math.min(pool.getParallelism(), height / MIN_BAND_ROWS));
+        }
+        int offset = 0;
+        if (bands == 1) {
+            byte[] rowData = new byte[rowStrides[0]];
+            for (int i = 0; i < buffers.length; i++) {
+                int shift = (i == 0) ? 0 : 1;
+                offset = extractPlane(buffers[i], rowStrides[i], pixelStrides[i],
+                        left >> shift, top >> shift, width >> shift, height >> shift,
+                        data, offset, rowData);
+            }
+            return offset;
+        }
+
+        final List<BandTask> tasks = new ArrayList<BandTask>(buffers.length * bands);
+        for (int i = 0; i < buffers.length; i++) {
+            int shift = (i == 0) ? 0 : 1;
+            int planeWidth = width >> shift;
+            int planeHeight = height >> shift;
+            if (buffers[i] == null) {
+                throw new IllegalArgumentException("Fail to get bytebuffer from plane");
+            }
+            for (int band = 0; band < bands; band++) {
+                int firstRow = planeHeight * band / bands;
+                int endRow = planeHeight * (band + 1) / bands;
+                if (endRow > firstRow) {
+                    // every task reads through its own view of the plane
+                    tasks.add(new BandTask(buffers[i].duplicate(), rowStrides[i],
+                            pixelStrides[i], left >> shift, (top >> shift) + firstRow,
+                            planeWidth, endRow - firstRow, data,
+                            offset + firstRow * planeWidth));
+                }
+            }
+            offset += planeWidth * planeHeight;
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return offset;
+    }
+
+    /**
+     * Pack a region of a single 8-bit plane into {@code data}.
+     *
+     * @param buffer The plane, starting at position 0. Its position is not changed.
+     * @param rowStride The distance between rows, in bytes.
+     * @param pixelStride The distance between samples, in bytes.
+     * @param left The first column of the region.
+     * @param top The first row of the region.
+     * @param w The width of the region.
+     * @param h The height of the region.
+     * @param data The destination array.
+     * @param offset The offset in {@code data} to write the region to.
+     * @param rowData Scratch space of at least one row stride, used when the
+     *                samples are not contiguous.
+     * @return The offset in {@code data} after the region.
+     */
+    static int extractPlane(ByteBuffer buffer, int rowStride, int pixelStride,
+            int left, int top, int w, int h, byte[] data, int offset, byte[] rowData) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Fail to get bytebuffer from plane");
+        }
+        if (pixelStride <= 0) {
+            throw new IllegalArgumentException("pixel stride " + pixelStride + " is invalid");
+        }
+        if (rowStride < w) {
+            throw new IllegalArgumentException(
+                    "rowStride " + rowStride + " should be >= width " + w);
+        }
+        // don't disturb the position seen by other readers of the plane
+        buffer = buffer.duplicate();
+        buffer.position(rowStride * top + pixelStride * left);
+        for (int row = 0; row < h; row++) {
+            int length;
+            if (pixelStride == 1) {
+                // Special case: optimized read of the entire row
+                length = w;
+                buffer.get(data, offset, length);
+                offset += length;
+            } else {
+                // Generic case: should work for any pixelStride but slower.
+                // Use intermediate buffer to avoid read byte-by-byte from
+                // DirectByteBuffer, which is very bad for performance
+                length = (w - 1) * pixelStride + 1;
+                buffer.get(rowData, 0, length);
+                for (int col = 0; col < w; col++) {
+                    data[offset++] = rowData[col * pixelStride];
+                }
+            }
+            // Advance buffer the remainder of the row stride
+            if (row < h - 1) {
+                buffer.position(buffer.position() + rowStride - length);
+            }
+        }
+        return offset;
+    }
+
+    private static class BandTask extends RecursiveAction {
+        private final ByteBuffer mBuffer;
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final int mLeft;
+        private final int mTop;
+        private final int mWidth;
+        private final int mHeight;
+        private final byte[] mData;
+        private final int mOffset;
+
+        BandTask(ByteBuffer buffer, int rowStride, int pixelStride, int left, int top,
+                int width, int height, byte[] data, int offset) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mLeft = left;
+            mTop = top;
+            mWidth = width;
+            mHeight = height;
+            mData = data;
+            mOffset = offset;
+        }
+
+        @Override
+        protected void compute() {
+            byte[] rowData = mPixelStride == 1 ? null : new byte[mRowStride];
+            extractPlane(mBuffer, mRowStride, mPixelStride, mLeft, mTop, mWidth, mHeight,
+                    mData, mOffset, rowData);
+        }
+    }
+
+    private static void checkYuv420(int format) {
+        if (!isYuv420(format)) {
+            throw new IllegalArgumentException("Unsupported Image Format: " + format);
+        }
+    }
+}
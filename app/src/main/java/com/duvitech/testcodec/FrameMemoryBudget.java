@@ -0,0 +1,204 @@
+package com.duvitech.testcodec;
+
+/**
+ * Process-wide budget for decoded frame bytes.
+ * <p>
+ * Anything that holds a decoded frame in the heap (frame pools, dump sinks)
+ * reserves the frame size here before allocating or acquiring it, and releases
+ * it once the frame is gone. When the budget is exhausted, {@link #reserve}
+ * blocks the producer until a consumer releases enough bytes, so the total
+ * stays flat no matter how many decode sessions run.
+ * </p>
+ * <p>
+ * Every frame is reserved once: images still in codec or image reader buffers
+ * are bounded by those buffer counts and are not reserved, and a copy made
+ * from them is. No thread has to wait for a second reservation while holding
+ * one, which could deadlock sessions waiting on each other's bytes.
+ * </p>
+ * <p>
+ * A single reservation larger than the whole budget is admitted only when
+ * nothing else is reserved, so an oversized frame slows the sweep down instead
+ * of deadlocking it.
+ * </p>
+ */
+public final class FrameMemoryBudget {
+
+    private static FrameMemoryBudget sInstance;
+
+    private long mCapacity;
+    private long mReserved;
+    private long mPeak;
+
+    // time-weighted usage, for getAverageBytes()
+    private long mStatsStartNs;
+    private long mLastChangeNs;
+    private double mByteNanos;
+
+    private long mWaitCount;
+    private long mWaitNs;
+
+    /**
+     * Get the process-wide budget. The default capacity is a quarter of the
+     * maximum heap size.
+     */
+    public static synchronized FrameMemoryBudget getInstance() {
+        if (sInstance == null) {
+            sInstance = new FrameMemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Create a standalone budget. Most callers should use {@link #getInstance}.
+     *
+     * @param capacity The budget in bytes, must be positive.
+     */
+    public FrameMemoryBudget(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mStatsStartNs = mLastChangeNs = System.nanoTime();
+    }
+
+    /**
+     * Change the budget. Shrinking it below the current usage does not revoke
+     * reservations, it only holds back new ones until usage drops.
+     */
+    public synchronized void setCapacity(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        notifyAll();
+    }
+
+    public synchronized long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Reserve bytes, waiting as long as needed for them to become available.
+     *
+     * @param bytes The number of bytes to reserve.
+     */
+    public void reserve(long bytes) throws InterruptedException {
+        tryReserve(bytes, -1);
+    }
+
+    /**
+     * Reserve bytes, waiting at most the given time for them to become available.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @param timeoutMs The maximum wait in milliseconds, negative to wait forever.
+     *                  Waits too long to count in nanoseconds, such as
+     *                  {@link Long#MAX_VALUE}, also last forever.
+     * @return true if the bytes were reserved, false if the wait timed out.
+     */
+    public synchronized boolean tryReserve(long bytes, long timeoutMs)
+            throws InterruptedException {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes must not be negative: " + bytes);
+        }
+        if (timeoutMs > Long.MAX_VALUE / 1000000L) {
+            timeoutMs = -1;
+        }
+        if (!fits(bytes)) {
+            long start = System.nanoTime();
+            // may wrap around, but the difference to nanoTime() stays correct
+            long deadline = start + timeoutMs * 1000000L;
+            mWaitCount++;
+            try {
+                while (!fits(bytes)) {
+                    if (timeoutMs < 0) {
+                        wait();
+                    } else {
+                        long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+                        if (remainingMs <= 0) {
+                            return false;
+                        }
+                        wait(remainingMs);
+                    }
+                }
+            } finally {
+                mWaitNs += System.nanoTime() - start;
+            }
+        }
+        update(mReserved + bytes);
+        return true;
+    }
+
+    /**
+     * Return bytes obtained from {@link #reserve} or {@link #tryReserve}.
+     */
+    public synchronized void release(long bytes) {
+        if (bytes < 0 || bytes > mReserved) {
+            throw new IllegalStateException(
+                    "releasing " + bytes + " bytes with only " + mReserved + " reserved");
+        }
+        update(mReserved - bytes);
+        notifyAll();
+    }
+
+    /** Bytes currently reserved. */
+    public synchronized long getReservedBytes() {
+        return mReserved;
+    }
+
+    /** Highest number of bytes reserved at once since the last {@link #resetStats}. */
+    public synchronized long getPeakBytes() {
+        return mPeak;
+    }
+
+    /** Time-weighted average of reserved bytes since the last {@link #resetStats}. */
+    public synchronized long getAverageBytes() {
+        long now = System.nanoTime();
+        long elapsed = now - mStatsStartNs;
+        if (elapsed <= 0) {
+            return mReserved;
+        }
+        return (long) ((mByteNanos + (double) mReserved * (now - mLastChangeNs)) / elapsed);
+    }
+
+    /** Number of reservations that had to wait for bytes to be released. */
+    public synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    /** Total time producers spent waiting for bytes, in milliseconds. */
+    public synchronized long getWaitTimeMs() {
+        return mWaitNs / 1000000L;
+    }
+
+    /**
+     * Restart peak, average and wait statistics. Current reservations are kept.
+     */
+    public synchronized void resetStats() {
+        mStatsStartNs = mLastChangeNs = System.nanoTime();
+        mByteNanos = 0;
+        mPeak = mReserved;
+        mWaitCount = 0;
+        mWaitNs = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameMemoryBudget{reserved=" + mReserved + ", capacity=" + mCapacity
+                + ", peak=" + mPeak + ", average=" + getAverageBytes()
+                + ", waits=" + mWaitCount + ", waitMs=" + getWaitTimeMs() + "}";
+    }
+
+    private boolean fits(long bytes) {
+        return mReserved == 0 || mReserved + bytes <= mCapacity;
+    }
+
+    private void update(long reserved) {
+        long now = System.nanoTime();
+        mByteNanos += (double) mReserved * (now - mLastChangeNs);
+        mLastChangeNs = now;
+        mReserved = reserved;
+        if (mReserved > mPeak) {
+            mPeak = mReserved;
+        }
+    }
+}
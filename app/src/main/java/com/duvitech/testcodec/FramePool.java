@@ -0,0 +1,180 @@
+package com.duvitech.testcodec;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of reusable packed frame buffers.
+ * <p>
+ * New buffers are reserved from a {@link FrameMemoryBudget} before they are
+ * allocated, so {@link #acquire} blocks once the budget is exhausted, for at
+ * most the reserve timeout, then fails rather than hang a session whose bytes
+ * another session is waiting for.
+ * </p>
+ * <p>
+ * Idle buffers are kept in a free list per size, so sessions decoding
+ * different resolutions at the same time share the pool without evicting each
+ * other. They keep their reservation until they are dropped: by {@link #clear},
+ * when their size already has the maximum number of idle buffers, when the
+ * idle bytes go over the cap, which drops the least recently used sizes first,
+ * or when the budget has no room for a new buffer of another size.
+ * </p>
+ */
+public class FramePool {
+    /** Default longest wait for the budget in {@link #acquire}. */
+    public static final long DEFAULT_RESERVE_TIMEOUT_MS = 10000;
+
+    private final FrameMemoryBudget mBudget;
+    private final int mMaxPooled;
+    private final long mMaxIdleBytes;
+    private final long mReserveTimeoutMs;
+    // idle buffers by size, least recently used size first
+    private final LinkedHashMap<Integer, ArrayList<byte[]>> mFree =
+            new LinkedHashMap<Integer, ArrayList<byte[]>>(16, 0.75f, true /* accessOrder */);
+    private long mIdleBytes;
+    private long mAllocations;
+
+    /**
+     * Create a pool that keeps at most half the budget's capacity in idle buffers.
+     *
+     * @param budget The budget new buffers are reserved from.
+     * @param maxPooled The maximum number of idle buffers kept for reuse per size.
+     */
+    public FramePool(FrameMemoryBudget budget, int maxPooled) {
+        this(budget, maxPooled, DEFAULT_RESERVE_TIMEOUT_MS);
+    }
+
+    /**
+     * Create a pool that keeps at most half the budget's capacity in idle buffers.
+     *
+     * @param budget The budget new buffers are reserved from.
+     * @param maxPooled The maximum number of idle buffers kept for reuse per size.
+     * @param reserveTimeoutMs The longest wait for the budget in {@link #acquire}.
+     */
+    public FramePool(FrameMemoryBudget budget, int maxPooled, long reserveTimeoutMs) {
+        this(budget, maxPooled, budget == null ? 0 : budget.getCapacity() / 2,
+                reserveTimeoutMs);
+    }
+
+    /**
+     * @param budget The budget new buffers are reserved from.
+     * @param maxPooled The maximum number of idle buffers kept for reuse per size.
+     * @param maxIdleBytes The maximum number of bytes kept in idle buffers.
+     * @param reserveTimeoutMs The longest wait for the budget in {@link #acquire}.
+     */
+    public FramePool(FrameMemoryBudget budget, int maxPooled, long maxIdleBytes,
+            long reserveTimeoutMs) {
+        if (budget == null) {
+            throw new IllegalArgumentException("budget must not be null");
+        }
+        if (reserveTimeoutMs < 0) {
+            throw new IllegalArgumentException(
+                    "reserveTimeoutMs must not be negative: " + reserveTimeoutMs);
+        }
+        mBudget = budget;
+        mMaxPooled = maxPooled;
+        mMaxIdleBytes = maxIdleBytes;
+        mReserveTimeoutMs = reserveTimeoutMs;
+    }
+
+    /**
+     * Get a buffer of exactly {@code size} bytes, reusing an idle one if
+     * possible. The content of a reused buffer is undefined.
+     *
+     * @throws IllegalStateException if the budget had no room for a new buffer
+     *         within the reserve timeout.
+     */
+    public byte[] acquire(int size) throws InterruptedException {
+        synchronized (this) {
+            ArrayList<byte[]> free = mFree.get(size);
+            if (free != null) {
+                byte[] buffer = free.remove(free.size() - 1);
+                if (free.isEmpty()) {
+                    mFree.remove(size);
+                }
+                mIdleBytes -= size;
+                return buffer;
+            }
+        }
+        if (!mBudget.tryReserve(size, 0)) {
+            // idle buffers of other sizes must not keep this one waiting
+            long evicted;
+            synchronized (this) {
+                evicted = evictIdle(0);
+            }
+            mBudget.release(evicted);
+            if (!mBudget.tryReserve(size, mReserveTimeoutMs)) {
+                throw new IllegalStateException("frame memory budget exhausted: no room for "
+                        + size + " bytes after " + mReserveTimeoutMs + "ms, " + mBudget);
+            }
+        }
+        synchronized (this) {
+            mAllocations++;
+        }
+        return new byte[size];
+    }
+
+    /**
+     * Give a buffer obtained from {@link #acquire} back to the pool.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        long evicted = buffer.length;
+        synchronized (this) {
+            ArrayList<byte[]> free = mFree.get(buffer.length);
+            if (free == null) {
+                free = new ArrayList<byte[]>();
+            }
+            if (free.size() < mMaxPooled) {
+                free.add(buffer);
+                mFree.put(buffer.length, free);
+                mIdleBytes += buffer.length;
+                evicted = evictIdle(mMaxIdleBytes);
+            }
+        }
+        mBudget.release(evicted);
+    }
+
+    /**
+     * Drop idle buffers, least recently used sizes first, until at most
+     * {@code maxIdleBytes} are left.
+     *
+     * @return The number of bytes dropped, to be returned to the budget.
+     */
+    private long evictIdle(long maxIdleBytes) {
+        long bytes = 0;
+        Iterator<Map.Entry<Integer, ArrayList<byte[]>>> sizes = mFree.entrySet().iterator();
+        while (mIdleBytes > maxIdleBytes && sizes.hasNext()) {
+            ArrayList<byte[]> free = sizes.next().getValue();
+            while (mIdleBytes > maxIdleBytes && !free.isEmpty()) {
+                int length = free.remove(0).length;
+                mIdleBytes -= length;
+                bytes += length;
+            }
+            if (free.isEmpty()) {
+                sizes.remove();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop all idle buffers and return their bytes to the budget.
+     */
+    public void clear() {
+        long bytes;
+        synchronized (this) {
+            bytes = evictIdle(0);
+        }
+        mBudget.release(bytes);
+    }
+
+    /** Number of buffers allocated (rather than reused) so far. */
+    public synchronized long getAllocationCount() {
+        return mAllocations;
+    }
+}
@@ -0,0 +1,477 @@
+package com.duvitech.testcodec;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Append-only, memory-mapped store for packed decoded frames.
+ * <p>
+ * Frames are written back to back into large segment files
+ * ({@code segment-NNNNN.bin}) which are mapped into memory, so appending a frame
+ * is a single copy into the page cache. Every frame also gets a fixed-size
+ * record in {@code index.bin} describing where it lives and what it is (codec,
+ * asset, frame number, PTS, format and dimensions).
+ * </p>
+ * <p>
+ * Only the segment being written to is mapped at its full size. Once it is
+ * full it is truncated to the bytes actually used and mapped again read-only
+ * at that size, and the last segment is truncated when the store is closed,
+ * so a short run does not leave a mostly empty segment behind.
+ * </p>
+ * <p>
+ * A store written by one run can be {@link #open opened} later, possibly from
+ * several threads at once, and its frames read back as {@link CodecImage}
+ * views directly on the mapped segments without copying.
+ * </p>
+ * <p>
+ * The frame data is expected in the packed layout produced by
+ * {@code getDataFromImage}: for YUV 4:2:0 formats the full Y plane followed by
+ * the U(Cb) and V(Cr) planes at half width and height.
+ * </p>
+ */
+public class FrameSpillStore implements Closeable {
+
+    /**
+     * Default size of a segment file, small enough to find address space for
+     * in a 32-bit process. Frames larger than this get a segment of their own.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String INDEX_FILE_NAME = "index.bin";
+    private static final int INDEX_MAGIC = 0x54434653; // "TCFS"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 16;
+    private static final int CODEC_NAME_SIZE = 48;
+    private static final int ASSET_NAME_SIZE = 32;
+    private static final int RECORD_SIZE = 128;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Index record of a stored frame.
+     */
+    public static class Entry {
+        Entry(String codecName, String assetName, int frameNumber, long ptsUs, int format,
+                int width, int height, int segment, long offset, int length) {
+            mCodecName = codecName;
+            mAssetName = assetName;
+            mFrameNumber = frameNumber;
+            mPtsUs = ptsUs;
+            mFormat = format;
+            mWidth = width;
+            mHeight = height;
+            mSegment = segment;
+            mOffset = offset;
+            mLength = length;
+        }
+        public String getCodecName() {
+            return mCodecName;
+        }
+        public String getAssetName() {
+            return mAssetName;
+        }
+        public int getFrameNumber() {
+            return mFrameNumber;
+        }
+        public long getPtsUs() {
+            return mPtsUs;
+        }
+        public int getFormat() {
+            return mFormat;
+        }
+        public int getWidth() {
+            return mWidth;
+        }
+        public int getHeight() {
+            return mHeight;
+        }
+        public int getLength() {
+            return mLength;
+        }
+        private final String mCodecName;
+        private final String mAssetName;
+        private final int mFrameNumber;
+        private final long mPtsUs;
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mSegment;
+        private final long mOffset;
+        private final int mLength;
+    }
+
+    private final File mDir;
+    private final boolean mWritable;
+    private final int mSegmentSize;
+    private final FileChannel mIndexChannel;
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    private final ArrayList<FileChannel> mSegmentChannels = new ArrayList<FileChannel>();
+    private int mSegmentUsed;
+    private boolean mClosed;
+
+    /**
+     * Create a new, empty store for writing. Any previous store in the
+     * directory is discarded.
+     *
+     * @param dir The directory holding the index and segment files.
+     * @param segmentSize The size of each segment file in bytes.
+     */
+    public static FrameSpillStore create(File dir, int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive: " + segmentSize);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + dir);
+        }
+        File[] old = dir.listFiles();
+        if (old != null) {
+            for (File f : old) {
+                if (f.getName().equals(INDEX_FILE_NAME) || f.getName().startsWith("segment-")) {
+                    f.delete();
+                }
+            }
+        }
+        return new FrameSpillStore(dir, true, segmentSize);
+    }
+
+    /**
+     * Open an existing store read-only.
+     *
+     * @param dir The directory a store was previously {@link #create created} in.
+     */
+    public static FrameSpillStore open(File dir) throws IOException {
+        return new FrameSpillStore(dir, false, 0);
+    }
+
+    private FrameSpillStore(File dir, boolean writable, int segmentSize) throws IOException {
+        mDir = dir;
+        mWritable = writable;
+        mIndexChannel = new RandomAccessFile(
+                new File(dir, INDEX_FILE_NAME), writable ? "rw" : "r").getChannel();
+        boolean ok = false;
+        try {
+            if (writable) {
+                mSegmentSize = segmentSize;
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+                header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(RECORD_SIZE)
+                        .putInt(segmentSize).flip();
+                mIndexChannel.write(header, 0);
+            } else {
+                mSegmentSize = readIndex();
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                closeChannels();
+            }
+        }
+    }
+
+    private int readIndex() throws IOException {
+        long size = mIndexChannel.size();
+        if (size < INDEX_HEADER_SIZE) {
+            throw new IOException("Truncated spill index in " + mDir);
+        }
+        ByteBuffer index = mIndexChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        if (index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION
+                || index.getInt() != RECORD_SIZE) {
+            throw new IOException("Not a frame spill index: " + mDir);
+        }
+        int segmentSize = index.getInt();
+        int count = (int) ((size - INDEX_HEADER_SIZE) / RECORD_SIZE);
+        ArrayList<Long> used = new ArrayList<Long>();
+        for (int i = 0; i < count; i++) {
+            index.position(INDEX_HEADER_SIZE + i * RECORD_SIZE);
+            String codecName = readString(index, CODEC_NAME_SIZE);
+            String assetName = readString(index, ASSET_NAME_SIZE);
+            Entry entry = new Entry(codecName, assetName, index.getInt(), index.getLong(),
+                    index.getInt(), index.getInt(), index.getInt(), index.getInt(),
+                    index.getLong(), index.getInt());
+            mEntries.add(entry);
+            while (used.size() <= entry.mSegment) {
+                used.add(0L);
+            }
+            used.set(entry.mSegment,
+                    Math.max(used.get(entry.mSegment), entry.mOffset + entry.mLength));
+        }
+        // map only what the frames use, a store that was never closed still
+        // has its last segment at full size
+        for (int segment = 0; new File(mDir, segmentName(segment)).exists(); segment++) {
+            FileChannel channel = new RandomAccessFile(
+                    new File(mDir, segmentName(segment)), "r").getChannel();
+            mSegmentChannels.add(channel);
+            long length = segment < used.size() ? used.get(segment) : 0;
+            if (length > channel.size()) {
+                throw new IOException("Truncated spill segment " + segmentName(segment)
+                        + " in " + mDir);
+            }
+            mSegments.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+        }
+        return segmentSize;
+    }
+
+    /**
+     * Append a packed frame to the store.
+     *
+     * @param codecName The name of the codec that decoded the frame.
+     * @param assetName The name of the decoded asset.
+     * @param frameNumber The index of the frame in its stream.
+     * @param ptsUs The presentation time of the frame in microseconds.
+     * @param format The image format of the frame.
+     * @param width The width of the frame in pixels.
+     * @param height The height of the frame in pixels.
+     * @param data The packed frame data.
+     * @param offset The offset of the frame in {@code data}.
+     * @param length The number of bytes of frame data.
+     * @return The index of the stored frame.
+     */
+    public synchronized int append(String codecName, String assetName, int frameNumber,
+            long ptsUs, int format, int width, int height, byte[] data, int offset, int length)
+            throws IOException {
+        checkOpen();
+        if (!mWritable) {
+            throw new IllegalStateException("Spill store " + mDir + " is read-only");
+        }
+        int segment = mSegments.size() - 1;
+        if (segment < 0 || mSegmentUsed + length > mSegments.get(segment).capacity()) {
+            segment = newSegment(Math.max(mSegmentSize, length));
+        }
+        ByteBuffer dst = mSegments.get(segment).duplicate();
+        dst.position(mSegmentUsed);
+        dst.put(data, offset, length);
+        Entry entry = new Entry(codecName, assetName, frameNumber, ptsUs, format,
+                width, height, segment, mSegmentUsed, length);
+        mSegmentUsed += length;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        writeString(record, codecName, CODEC_NAME_SIZE);
+        writeString(record, assetName, ASSET_NAME_SIZE);
+        record.putInt(frameNumber).putLong(ptsUs).putInt(format).putInt(width).putInt(height)
+                .putInt(segment).putLong(entry.mOffset).putInt(length);
+        record.clear();
+        mIndexChannel.write(record, INDEX_HEADER_SIZE + (long) mEntries.size() * RECORD_SIZE);
+        mEntries.add(entry);
+        return mEntries.size() - 1;
+    }
+
+    private int newSegment(int size) throws IOException {
+        int segment = mSegments.size();
+        if (segment > 0) {
+            trimSegment(segment - 1);
+            // drop the full-size writable mapping, frames in the segment are only read now
+            mSegments.set(segment - 1, mSegmentChannels.get(segment - 1)
+                    .map(FileChannel.MapMode.READ_ONLY, 0, mSegmentUsed));
+        }
+        FileChannel channel = new RandomAccessFile(
+                new File(mDir, segmentName(segment)), "rw").getChannel();
+        mSegmentChannels.add(channel);
+        mSegments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        mSegmentUsed = 0;
+        return segment;
+    }
+
+    /**
+     * Flush a segment and cut its file down to the bytes used. The mapping
+     * keeps its size, so it must not be read past the used bytes.
+     */
+    private void trimSegment(int segment) throws IOException {
+        mSegments.get(segment).force();
+        mSegmentChannels.get(segment).truncate(mSegmentUsed);
+    }
+
+    /** Number of frames in the store. */
+    public synchronized int getFrameCount() {
+        return mEntries.size();
+    }
+
+    /** Index record of the frame at {@code index}. */
+    public synchronized Entry getEntry(int index) {
+        return mEntries.get(index);
+    }
+
+    /**
+     * Get a read-only view of a stored frame. The planes of the returned image
+     * share the mapped segment, so no frame data is copied. The view must not
+     * be used after the store is closed.
+     */
+    public CodecImage getImage(int index) {
+        Entry entry;
+        ByteBuffer data;
+        synchronized (this) {
+            checkOpen();
+            entry = mEntries.get(index);
+            data = mSegments.get(entry.mSegment).duplicate();
+        }
+        data.limit((int) entry.mOffset + entry.mLength);
+        data.position((int) entry.mOffset);
+        return CodecImage.track(new SpilledImage(entry, data.slice().asReadOnlyBuffer()));
+    }
+
+    /**
+     * Flush the mapped segments and the index to disk, trim the last segment
+     * to its used size and close the store.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mWritable) {
+                // earlier segments were trimmed when they filled up
+                if (!mSegments.isEmpty()) {
+                    trimSegment(mSegments.size() - 1);
+                }
+                mIndexChannel.force(true);
+            }
+        } finally {
+            closeChannels();
+        }
+    }
+
+    private void closeChannels() throws IOException {
+        for (FileChannel channel : mSegmentChannels) {
+            channel.close();
+        }
+        mIndexChannel.close();
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Spill store " + mDir + " is closed");
+        }
+    }
+
+    private static String segmentName(int segment) {
+        return String.format(Locale.US, "segment-%05d.bin", segment);
+    }
+
+    private static void writeString(ByteBuffer record, String value, int size) {
+        byte[] bytes = (value == null ? "" : value).getBytes(UTF_8);
+        int length = Math.min(bytes.length, size);
+        record.put(bytes, 0, length);
+        record.position(record.position() + size - length);
+    }
+
+    private static String readString(ByteBuffer record, int size) {
+        byte[] bytes = new byte[size];
+        record.get(bytes);
+        int length = 0;
+        while (length < size && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    /**
+     * {@link CodecImage} view of a packed frame in a mapped segment.
+     */
+    private static class SpilledImage extends CodecImage {
+        private final Entry mEntry;
+        private final Plane[] mPlanes;
+        private boolean mClosed;
+
+        SpilledImage(Entry entry, ByteBuffer data) {
+            mEntry = entry;
+            int width = entry.getWidth();
+            int height = entry.getHeight();
+            int lumaSize = width * height;
+            int chromaSize = (width / 2) * (height / 2);
+            if (FrameExtractor.isYuv420(entry.getFormat())
+                    && entry.getLength() == lumaSize + 2 * chromaSize) {
+                mPlanes = new Plane[] {
+                        new SpilledPlane(slice(data, 0, lumaSize), width),
+                        new SpilledPlane(slice(data, lumaSize, chromaSize), width / 2),
+                        new SpilledPlane(slice(data, lumaSize + chromaSize, chromaSize), width / 2)
+                };
+            } else {
+                mPlanes = new Plane[] {
+                        new SpilledPlane(data, height > 0 ? entry.getLength() / height : 0)
+                };
+            }
+        }
+
+        private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+            ByteBuffer plane = data.duplicate();
+            plane.position(offset);
+            plane.limit(offset + length);
+            return plane.slice();
+        }
+
+        @Override
+        public int getFormat() {
+            checkValid();
+            return mEntry.getFormat();
+        }
+
+        @Override
+        public int getWidth() {
+            checkValid();
+            return mEntry.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            checkValid();
+            return mEntry.getHeight();
+        }
+
+        @Override
+        public long getTimestamp() {
+            checkValid();
+            return mEntry.getPtsUs() * 1000;
+        }
+
+        @Override
+        public Plane[] getPlanes() {
+            checkValid();
+            return mPlanes;
+        }
+
+        @Override
+        public void close() {
+            untrack();
+            mClosed = true;
+        }
+
+        private void checkValid() {
+            if (mClosed) {
+                throw new IllegalStateException("Image is already closed");
+            }
+        }
+
+        private static class SpilledPlane extends Plane {
+            private final ByteBuffer mBuffer;
+            private final int mRowStride;
+
+            SpilledPlane(ByteBuffer buffer, int rowStride) {
+                mBuffer = buffer;
+                mRowStride = rowStride;
+            }
+
+            @Override
+            public int getRowStride() {
+                return mRowStride;
+            }
+
+            @Override
+            public int getPixelStride() {
+                return 1;
+            }
+
+            @Override
+            public ByteBuffer getBuffer() {
+                return mBuffer.duplicate();
+            }
+        }
+    }
+}
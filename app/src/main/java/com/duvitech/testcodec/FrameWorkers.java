@@ -0,0 +1,34 @@
+package com.duvitech.testcodec;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Shared worker pool for per-frame parallel work such as row-band processing.
+ * <p>
+ * All decode sessions share one pool sized to the number of cores, so running
+ * several sessions at once does not multiply the number of worker threads.
+ * </p>
+ */
+public final class FrameWorkers {
+    private static ForkJoinPool sPool;
+
+    private FrameWorkers() {
+    }
+
+    /**
+     * Get the shared pool, creating it on first use.
+     */
+    public static synchronized ForkJoinPool getPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(getParallelism());
+        }
+        return sPool;
+    }
+
+    /**
+     * Number of workers in the shared pool.
+     */
+    public static int getParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+}
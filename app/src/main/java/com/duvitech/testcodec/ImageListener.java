@@ -0,0 +1,57 @@
+package com.duvitech.testcodec;
+
+import android.media.Image;
+import android.media.ImageReader;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Queue of images handed off from the reader thread of an {@link ImageReader}.
+ * <p>
+ * The images stay in the reader's buffers, which its maximum image count
+ * bounds, so they are not reserved from the {@link FrameMemoryBudget}; only the
+ * packed copies made from them are. A thread holding an image therefore never
+ * waits on the budget while holding a reservation of its own. Consumers hand
+ * images back through {@link #recycle}.
+ * </p>
+ */
+public class ImageListener implements ImageReader.OnImageAvailableListener {
+    private final LinkedBlockingQueue<Image> mQueue = new LinkedBlockingQueue<Image>();
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        mQueue.add(reader.acquireNextImage());
+    }
+
+    /**
+     * Get an image from the image reader.
+     *
+     * @param timeout Timeout value for the wait.
+     * @return The image from the image reader.
+     */
+    public Image getImage(long timeout) throws InterruptedException {
+        Image image = mQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        assertNotNull("Wait for an image timed out in " + timeout + "ms", image);
+        return image;
+    }
+
+    /**
+     * Close an image obtained from {@link #getImage}.
+     */
+    public void recycle(Image image) {
+        image.close();
+    }
+
+    /**
+     * Recycle all images that were queued but never consumed.
+     */
+    public void clear() {
+        Image image;
+        while ((image = mQueue.poll()) != null) {
+            recycle(image);
+        }
+    }
+}
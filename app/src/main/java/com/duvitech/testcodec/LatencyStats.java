@@ -0,0 +1,83 @@
+package com.duvitech.testcodec;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of duration samples, in nanoseconds, with summary statistics.
+ * Not thread-safe.
+ */
+public class LatencyStats {
+    private long[] mSamples = new long[64];
+    private int mCount;
+    private boolean mSorted = true;
+
+    /** Add a sample. */
+    public void add(long ns) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = ns;
+        mSorted = false;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Copy of the samples, in no particular order. */
+    public long[] getSamples() {
+        return Arrays.copyOf(mSamples, mCount);
+    }
+
+    /** Mean of the samples, 0 if there are none. */
+    public double getMean() {
+        if (mCount == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mSamples[i];
+        }
+        return sum / mCount;
+    }
+
+    /** Sample standard deviation, 0 if there are fewer than two samples. */
+    public double getStdDev() {
+        if (mCount < 2) {
+            return 0;
+        }
+        double mean = getMean();
+        double sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            double d = mSamples[i] - mean;
+            sum += d * d;
+        }
+        return Math.sqrt(sum / (mCount - 1));
+    }
+
+    /**
+     * Get a percentile using the nearest-rank method.
+     *
+     * @param percentile The percentile, in (0, 100].
+     * @return The percentile, 0 if there are no samples.
+     */
+    public long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        if (!mSorted) {
+            Arrays.sort(mSamples, 0, mCount);
+            mSorted = true;
+        }
+        return getPercentile(mSamples, mCount, percentile);
+    }
+
+    /**
+     * Nearest-rank percentile of the first {@code count} values of a sorted
+     * array, which must not be empty.
+     */
+    static long getPercentile(long[] sorted, int count, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.min(count, Math.max(1, rank)) - 1];
+    }
+}
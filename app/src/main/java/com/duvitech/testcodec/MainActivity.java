@@ -3,7 +3,6 @@ package com.duvitech.testcodec;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.graphics.ImageFormat;
-import android.graphics.Rect;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaCodec;
@@ -22,11 +21,11 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Date;
+import java.util.Locale;
 
 import static android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
 import static android.util.Log.VERBOSE;
@@ -40,9 +39,15 @@ public class MainActivity extends AppCompatActivity {
     static final float SWIRL_FPS = 12.f;
     static String TAG = "Decoder";
 
-    private static final long DEFAULT_TIMEOUT_US = 10000;
-    private static final long WAIT_FOR_IMAGE_TIMEOUT_MS = 1000;
     private static final String DEBUG_FILE_NAME_BASE = "/sdcard/";
+    private static final String SPILL_DIR_NAME = "testcodec-frames";
+    private static final String PERF_REPORT_NAME = "testcodec-perf";
+    /**
+     * Boolean intent extra; when set, every decoded frame is appended to a
+     * {@link FrameSpillStore} in the {@link #getOutputDir output directory}, e.g.
+     * {@code adb shell am start -n com.duvitech.testcodec/.MainActivity --ez spill_frames true}.
+     */
+    static final String EXTRA_SPILL_FRAMES = "spill_frames";
     private static final int NUM_FRAME_DECODED = 100;
     // video decoders only support a single outstanding image with the consumer
     private static final int MAX_NUM_IMAGES = 1;
@@ -50,6 +55,11 @@ public class MainActivity extends AppCompatActivity {
     private static final float COLOR_DELTA_ALLOWANCE = 5f;
     private final static int MODE_IMAGEREADER = 0;
     private final static int MODE_IMAGE       = 1;
+    // idle packed frames kept for reuse by getDataFromImage and frame validation
+    private static final int MAX_POOLED_FRAMES = 2;
+
+    private static final FramePool sFramePool =
+            new FramePool(FrameMemoryBudget.getInstance(), MAX_POOLED_FRAMES);
 
     private Resources mResources;
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
@@ -58,6 +68,10 @@ public class MainActivity extends AppCompatActivity {
     private HandlerThread mHandlerThread;
     private Handler mHandler;
     private ImageListener mImageListener;
+    // decoded frames are appended here for post-run analysis, null if disabled
+    private FrameSpillStore mSpillStore;
+    // per codec and asset numbers of the decodes run so far
+    private final PerfReport mPerfReport = new PerfReport();
 
 
     static class MediaAsset {
@@ -100,11 +114,28 @@ public class MainActivity extends AppCompatActivity {
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
         mImageListener = new ImageListener();
+        // debug builds log every decoded frame nobody released at tearDown
+        CodecImage.setLeakTrackingEnabled(BuildConfig.DEBUG);
+        if (getIntent().getBooleanExtra(EXTRA_SPILL_FRAMES, false)) {
+            startFrameSpill();
+        }
     }
 
     private void tearDown() throws Exception {
         mHandlerThread.quitSafely();
         mHandler = null;
+        // in-memory cleanup first, so a failed write below can't skip it
+        int leaks = CodecImage.reportLeaks();
+        if (leaks > 0) {
+            Log.w(TAG, leaks + " decoded frames were never released");
+        }
+        sFramePool.clear();
+        Log.d(TAG, "frame memory: " + FrameMemoryBudget.getInstance());
+        try {
+            stopFrameSpill();
+        } finally {
+            writePerfReport();
+        }
     }
 
     @Override
@@ -170,7 +201,8 @@ public class MainActivity extends AppCompatActivity {
      * @param filePath The debug dump file path, null if don't want to dump to file.
      */
     public static void validateImage(
-            Image image, int width, int height, int format, String filePath) {
+            Image image, int width, int height, int format, String filePath)
+            throws InterruptedException {
 
         Image.Plane[] imagePlanes = image.getPlanes();
         Log.v(TAG, "Image " + filePath + " Info:");
@@ -186,10 +218,15 @@ public class MainActivity extends AppCompatActivity {
         Log.v(TAG, "validating Image");
 
         byte[] data = getDataFromImage(image);
-        assertTrue("Invalid image data", data != null && data.length > 0);
-        validateYuvData(data, width, height, format, image.getTimestamp());
-        if (filePath != null) {
-            dumpFile(filePath, data);
+        try {
+            assertTrue("Invalid image data", data != null && data.length > 0);
+            validateYuvData(data, width, height, format, image.getTimestamp());
+            if (filePath != null) {
+                // writes the pooled buffer as is, so the dump needs no reservation of its own
+                dumpFile(filePath, data);
+            }
+        } finally {
+            sFramePool.release(data);
         }
     }
 
@@ -231,29 +268,67 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Directory for spilled frames and performance reports. The app-specific
+     * external directory needs no storage permission and can be pulled with
+     * adb; internal storage is used when no external storage is mounted.
+     */
+    private File getOutputDir() {
+        File dir = getExternalFilesDir(null);
+        return dir != null ? dir : getFilesDir();
+    }
 
-    private static class ImageListener implements ImageReader.OnImageAvailableListener {
-        private final LinkedBlockingQueue<Image> mQueue =
-                new LinkedBlockingQueue<Image>();
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            try {
-                mQueue.put(reader.acquireNextImage());
-            } catch (InterruptedException e) {
-                throw new UnsupportedOperationException(
-                        "Can't handle InterruptedException in onImageAvailable");
-            }
+    /**
+     * Start appending every decoded frame to a {@link FrameSpillStore} in the
+     * {@link #getOutputDir output directory}, replacing the store of a previous run.
+     */
+    private void startFrameSpill() throws IOException {
+        stopFrameSpill();
+        mSpillStore = FrameSpillStore.create(
+                new File(getOutputDir(), SPILL_DIR_NAME),
+                FrameSpillStore.DEFAULT_SEGMENT_SIZE);
+    }
+
+    private void stopFrameSpill() throws IOException {
+        if (mSpillStore != null) {
+            Log.v(TAG, "spilled " + mSpillStore.getFrameCount() + " frames");
+            mSpillStore.close();
+            mSpillStore = null;
         }
-        /**
-         * Get an image from the image reader.
-         *
-         * @param timeout Timeout value for the wait.
-         * @return The image from the image reader.
-         */
-        public Image getImage(long timeout) throws InterruptedException {
-            Image image = mQueue.poll(timeout, TimeUnit.MILLISECONDS);
-            assertNotNull("Wait for an image timed out in " + timeout + "ms", image);
-            return image;
+    }
+
+    /**
+     * Write the performance report of all decodes run so far to the
+     * {@link #getOutputDir output directory}, as JSON and CSV. Every run gets
+     * its own timestamped name, so earlier reports stay around as baselines
+     * for {@link PerfReportComparator}.
+     */
+    private void writePerfReport() throws IOException {
+        if (mPerfReport.getEntries().isEmpty()) {
+            return;
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File base = new File(getOutputDir(), PERF_REPORT_NAME + "-" + stamp);
+        Log.v(TAG, "performance report will be saved as " + base + ".json/.csv");
+        mPerfReport.write(base);
+    }
+
+    /**
+     * Append the packed data of a frame to the spill store.
+     *
+     * @param data The frame as packed by validation, or null to pack it here.
+     */
+    private void spillImage(String codecName, String assetName, int frameNumber, long ptsUs,
+            CodecImage frame, byte[] data) throws IOException, InterruptedException {
+        // without validation nothing packed the frame yet
+        byte[] packed = data != null ? data : FrameExtractor.extract(frame, sFramePool);
+        try {
+            mSpillStore.append(codecName, assetName, frameNumber, ptsUs, frame.getFormat(),
+                    frame.getCropWidth(), frame.getCropHeight(), packed, 0, packed.length);
+        } finally {
+            if (packed != data) {
+                sFramePool.release(packed);
+            }
         }
     }
 
@@ -262,10 +337,8 @@ public class MainActivity extends AppCompatActivity {
      */
     private void decodeFramesToImage(
             MediaCodec decoder, MediaExtractor extractor, MediaFormat mediaFormat,
-            int width, int height, int imageFormat, int mode, boolean checkSwirl)
-            throws InterruptedException {
-        ByteBuffer[] decoderInputBuffers;
-        ByteBuffer[] decoderOutputBuffers;
+            final String assetName, int width, int height, int imageFormat, int mode,
+            boolean checkSwirl) throws Exception {
         // Configure decoder.
         Log.v(TAG, "stream format: " + mediaFormat);
         if (mode == MODE_IMAGEREADER) {
@@ -275,94 +348,31 @@ public class MainActivity extends AppCompatActivity {
             assertEquals(mode, MODE_IMAGE);
             decoder.configure(mediaFormat, null /* surface */, null /* crypto */, 0 /* flags */);
         }
-        decoder.start();
-        decoderInputBuffers = decoder.getInputBuffers();
-        decoderOutputBuffers = decoder.getOutputBuffers();
         extractor.selectTrack(0);
-        // Start decoding and get Image, only test the first NUM_FRAME_DECODED frames.
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean sawInputEOS = false;
-        boolean sawOutputEOS = false;
-        int outputFrameCount = 0;
-        while (!sawOutputEOS && outputFrameCount < NUM_FRAME_DECODED) {
-            Log.v(TAG, "loop:" + outputFrameCount);
-            // Feed input frame.
-            if (!sawInputEOS) {
-                int inputBufIndex = decoder.dequeueInputBuffer(DEFAULT_TIMEOUT_US);
-                if (inputBufIndex >= 0) {
-                    ByteBuffer dstBuf = decoderInputBuffers[inputBufIndex];
-                    int sampleSize =
-                            extractor.readSampleData(dstBuf, 0 /* offset */);
-                    Log.v(TAG, "queue a input buffer, idx/size: "
-                            + inputBufIndex + "/" + sampleSize);
-                    long presentationTimeUs = 0;
-                    if (sampleSize < 0) {
-                        Log.v(TAG, "saw input EOS.");
-                        sawInputEOS = true;
-                        sampleSize = 0;
-                    } else {
-                        presentationTimeUs = extractor.getSampleTime();
-                    }
-                    decoder.queueInputBuffer(
-                            inputBufIndex,
-                            0 /* offset */,
-                            sampleSize,
-                            presentationTimeUs,
-                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-                    if (!sawInputEOS) {
-                        extractor.advance();
-                    }
+        final String codecName = decoder.getName();
+        final SceneChangeDetector sceneDetector = new SceneChangeDetector();
+        DecodePipeline pipeline = new DecodePipeline(
+                new MediaCodecDecoder(decoder, mode == MODE_IMAGEREADER ? mImageListener : null),
+                new MediaExtractorSource(extractor), width, height, imageFormat, sFramePool);
+        pipeline.setFrameListener(new DecodePipeline.FrameListener() {
+            @Override
+            public void onFrame(CodecImage frame, byte[] data, int frameNumber,
+                    long presentationTimeUs) throws Exception {
+                SceneChangeDetector.Result scene = sceneDetector.process(frame);
+                if (scene.isSceneCut()) {
+                    Log.v(TAG, "scene cut at " + scene);
                 }
-            }
-            // Get output frame
-            int res = decoder.dequeueOutputBuffer(info, DEFAULT_TIMEOUT_US);
-            Log.v(TAG, "got a buffer: " + info.size + "/" + res);
-            if (res == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                // no output available yet
-                Log.v(TAG, "no output frame available");
-            } else if (res == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // decoder output buffers changed, need update.
-                Log.v(TAG, "decoder output buffers changed");
-                decoderOutputBuffers = decoder.getOutputBuffers();
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // this happens before the first frame is returned.
-                MediaFormat outFormat = decoder.getOutputFormat();
-                Log.v(TAG, "decoder output format changed: " + outFormat);
-            } else if (res < 0) {
-                // Should be decoding error.
-                fail("unexpected result from deocder.dequeueOutputBuffer: " + res);
-            } else {
-                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    sawOutputEOS = true;
-                }
-                // res >= 0: normal decoding case, copy the output buffer.
-                // Will use it as reference to valid the ImageReader output
-                // Some decoders output a 0-sized buffer at the end. Ignore those.
-                boolean doRender = (info.size != 0);
-                if (doRender) {
-                    outputFrameCount++;
-                    Image image = null;
-                    try {
-                        if (mode == MODE_IMAGE) {
-                            image = decoder.getOutputImage(res);
-                        } else {
-                            decoder.releaseOutputBuffer(res, doRender);
-                            res = -1;
-                            // Read image and verify
-                            image = mImageListener.getImage(WAIT_FOR_IMAGE_TIMEOUT_MS);
-                        }
-
-                    } finally {
-                        if (image != null) {
-                            image.close();
-                        }
-                    }
-                }
-                if (res >= 0) {
-                    decoder.releaseOutputBuffer(res, false /* render */);
+                if (mSpillStore != null) {
+                    spillImage(codecName, assetName, frameNumber, presentationTimeUs, frame,
+                            data);
                 }
             }
-        }
+        });
+        // Start decoding and get Image, only test the first NUM_FRAME_DECODED frames.
+        pipeline.run(NUM_FRAME_DECODED);
+        mPerfReport.add(PerfReport.Entry.from(codecName, assetName, pipeline));
+        Log.v(TAG, codecName + " decoded " + pipeline.getFrameCount() + " frames at "
+                + pipeline.getFramesPerSecond() + " fps");
     }
 
     /**
@@ -372,6 +382,7 @@ public class MainActivity extends AppCompatActivity {
         if (mReader != null) {
             try {
                 // Close all possible pending images first.
+                mImageListener.clear();
                 Image image = mReader.acquireLatestImage();
                 if (image != null) {
                     image.close();
@@ -397,72 +408,27 @@ public class MainActivity extends AppCompatActivity {
      * the Y plane data first, followed by U(Cb), V(Cr) planes if there is any
      * (xstride = width, ystride = height for chroma and luma components).
      * </p>
+     * <p>
+     * The array comes from the shared frame pool and must be handed back with
+     * {@code sFramePool.release} once the caller is done with it.
+     * </p>
      */
-    private static byte[] getDataFromImage(Image image) {
+    private static byte[] getDataFromImage(Image image) throws InterruptedException {
         assertNotNull("Invalid image:", image);
-        Rect crop = image.getCropRect();
-        int format = image.getFormat();
-        int width = crop.width();
-        int height = crop.height();
-        int rowStride, pixelStride;
-        byte[] data = null;
-        // Read image data
-        Image.Plane[] planes = image.getPlanes();
-        assertTrue("Fail to get image planes", planes != null && planes.length > 0);
         // Check image validity
         checkAndroidImageFormat(image);
-        ByteBuffer buffer = null;
-        int offset = 0;
-        data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-
-        Log.v(TAG, "get data from " + planes.length + " planes");
-
-        for (int i = 0; i < planes.length; i++) {
-            int shift = (i == 0) ? 0 : 1;
-            buffer = planes[i].getBuffer();
-            assertNotNull("Fail to get bytebuffer from plane", buffer);
-            rowStride = planes[i].getRowStride();
-            pixelStride = planes[i].getPixelStride();
-            assertTrue("pixel stride " + pixelStride + " is invalid", pixelStride > 0);
-
-            Log.v(TAG, "pixelStride " + pixelStride);
-            Log.v(TAG, "rowStride " + rowStride);
-            Log.v(TAG, "width " + width);
-            Log.v(TAG, "height " + height);
-
-            // For multi-planar yuv images, assuming yuv420 with 2x2 chroma subsampling.
-            int w = crop.width() >> shift;
-            int h = crop.height() >> shift;
-            buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
-            assertTrue("rowStride " + rowStride + " should be >= width " + w , rowStride >= w);
-            for (int row = 0; row < h; row++) {
-                int bytesPerPixel = ImageFormat.getBitsPerPixel(format) / 8;
-                int length;
-                if (pixelStride == bytesPerPixel) {
-                    // Special case: optimized read of the entire row
-                    length = w * bytesPerPixel;
-                    buffer.get(data, offset, length);
-                    offset += length;
-                } else {
-                    // Generic case: should work for any pixelStride but slower.
-                    // Use intermediate buffer to avoid read byte-by-byte from
-                    // DirectByteBuffer, which is very bad for performance
-                    length = (w - 1) * pixelStride + bytesPerPixel;
-                    buffer.get(rowData, 0, length);
-                    for (int col = 0; col < w; col++) {
-                        data[offset++] = rowData[col * pixelStride];
-                    }
-                }
-                // Advance buffer the remainder of the row stride
-                if (row < h - 1) {
-                    buffer.position(buffer.position() + rowStride - length);
-                }
+        // the caller keeps ownership of the image, so releasing the wrapper must not close it
+        CodecImage frame = new MediaCodecImage(image, new Runnable() {
+            @Override
+            public void run() {
             }
-
-            Log.v(TAG, "Finished reading data from plane " + i);
+        });
+        try {
+            // hands the pool buffer back itself if the copy fails
+            return FrameExtractor.extract(frame, sFramePool);
+        } finally {
+            frame.release();
         }
-        return data;
     }
 
     private static void dumpFile(String fileName, byte[] data) {
@@ -573,7 +539,7 @@ public class MainActivity extends AppCompatActivity {
                 decoder = MediaCodec.createByCodecName(mName);
                 assertNotNull("couldn't create decoder" + mName, decoder);
                 decodeFramesToImage(
-                        decoder, extractor, mediaFormat,
+                        decoder, extractor, mediaFormat, mResources.getResourceEntryName(video),
                         width, height, imageFormat, mode, checkSwirl);
                 decoder.stop();
                 if (vidFD != null) {
@@ -0,0 +1,117 @@
+package com.duvitech.testcodec;
+
+import android.media.Image;
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link FrameDecoder} on top of a configured {@link MediaCodec}.
+ * <p>
+ * Without an image listener the frames are read with
+ * {@link MediaCodec#getOutputImage}. With one, the codec is expected to render
+ * into the listener's {@link android.media.ImageReader ImageReader}, and every
+ * output buffer is rendered and its frame taken from the listener.
+ * </p>
+ */
+public class MediaCodecDecoder implements FrameDecoder {
+    private static final long WAIT_FOR_IMAGE_TIMEOUT_MS = 1000;
+
+    private final MediaCodec mCodec;
+    private final ImageListener mImageListener;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param codec The configured codec.
+     * @param imageListener The listener of the image reader the codec renders
+     *                      to, or null to read the output images directly.
+     */
+    MediaCodecDecoder(MediaCodec codec, ImageListener imageListener) {
+        mCodec = codec;
+        mImageListener = imageListener;
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(
+            int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs,
+                (flags & BUFFER_FLAG_END_OF_STREAM) != 0
+                        ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        int res = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        switch (res) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return INFO_TRY_AGAIN_LATER;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                return INFO_OUTPUT_BUFFERS_CHANGED;
+        }
+        if (res >= 0) {
+            info.set(mInfo.offset, mInfo.size, mInfo.presentationTimeUs,
+                    (mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
+                            ? BUFFER_FLAG_END_OF_STREAM : 0);
+        }
+        return res;
+    }
+
+    @Override
+    public CodecImage getOutputImage(final int index) throws InterruptedException {
+        if (mImageListener == null) {
+            final Image image = mCodec.getOutputImage(index);
+            return CodecImage.track(new MediaCodecImage(image, new Runnable() {
+                @Override
+                public void run() {
+                    image.close();
+                    mCodec.releaseOutputBuffer(index, false /* render */);
+                }
+            }));
+        }
+        mCodec.releaseOutputBuffer(index, true /* render */);
+        final Image image = mImageListener.getImage(WAIT_FOR_IMAGE_TIMEOUT_MS);
+        return CodecImage.track(new MediaCodecImage(image, new Runnable() {
+            @Override
+            public void run() {
+                mImageListener.recycle(image);
+            }
+        }));
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false /* render */);
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+}
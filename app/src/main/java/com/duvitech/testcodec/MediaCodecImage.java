@@ -0,0 +1,125 @@
+package com.duvitech.testcodec;
+
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CodecImage} backed by an {@link Image} from a decoder or an
+ * {@link android.media.ImageReader ImageReader}.
+ * <p>
+ * Closing it, normally through the last {@link #release}, runs the given
+ * recycler, which is expected to close the wrapped image and return the decoder
+ * output buffer if there is one.
+ * </p>
+ */
+public class MediaCodecImage extends CodecImage {
+    private final Image mImage;
+    private final Runnable mRecycler;
+    private final Plane[] mPlanes;
+    private boolean mClosed;
+
+    /**
+     * @param image The image to wrap.
+     * @param recycler Run once when this image is closed, or null to just
+     *                 close {@code image}.
+     */
+    public MediaCodecImage(Image image, Runnable recycler) {
+        mImage = image;
+        mRecycler = recycler;
+        Image.Plane[] planes = image.getPlanes();
+        mPlanes = new Plane[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            mPlanes[i] = new MediaPlane(planes[i]);
+        }
+        super.setCropRect(image.getCropRect());
+    }
+
+    /**
+     * Get the wrapped image.
+     */
+    public Image getImage() {
+        checkValid();
+        return mImage;
+    }
+
+    @Override
+    public int getFormat() {
+        checkValid();
+        return mImage.getFormat();
+    }
+
+    @Override
+    public int getWidth() {
+        checkValid();
+        return mImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        checkValid();
+        return mImage.getHeight();
+    }
+
+    @Override
+    public long getTimestamp() {
+        checkValid();
+        return mImage.getTimestamp();
+    }
+
+    @Override
+    public void setCropRect(int left, int top, int right, int bottom) {
+        checkValid();
+        super.setCropRect(left, top, right, bottom);
+    }
+
+    @Override
+    public Plane[] getPlanes() {
+        checkValid();
+        return mPlanes;
+    }
+
+    @Override
+    public synchronized void close() {
+        untrack();
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mRecycler != null) {
+            mRecycler.run();
+        } else {
+            mImage.close();
+        }
+    }
+
+    private synchronized void checkValid() {
+        if (mClosed) {
+            throw new IllegalStateException("Image is already closed");
+        }
+    }
+
+    private static class MediaPlane extends Plane {
+        private final Image.Plane mPlane;
+
+        MediaPlane(Image.Plane plane) {
+            mPlane = plane;
+        }
+
+        @Override
+        public int getRowStride() {
+            return mPlane.getRowStride();
+        }
+
+        @Override
+        public int getPixelStride() {
+            return mPlane.getPixelStride();
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            // consumers sharing the image must not move each other's position
+            return mPlane.getBuffer().duplicate();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.duvitech.testcodec;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link SampleSource} reading the selected track of a {@link MediaExtractor}.
+ */
+public class MediaExtractorSource implements SampleSource {
+    private final MediaExtractor mExtractor;
+
+    public MediaExtractorSource(MediaExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+}
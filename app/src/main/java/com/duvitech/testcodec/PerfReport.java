@@ -0,0 +1,515 @@
+package com.duvitech.testcodec;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-codec, per-asset performance numbers of a decode sweep.
+ * <p>
+ * A report is written as JSON for tools and as CSV for spreadsheets, and can be
+ * read back from either, for instance by {@link PerfReportComparator} to find
+ * regressions between two runs.
+ * </p>
+ * <p>
+ * Besides the summary numbers every entry keeps its raw per-frame latencies,
+ * a JSON array or a space-separated CSV field, since tail percentiles can't be
+ * compared from means and standard deviations. Reports without them still
+ * read, with no samples.
+ * </p>
+ */
+public class PerfReport {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int VERSION = 2;
+
+    private static final String[] COLUMNS = {
+            "codec", "asset", "frames", "fps", "setupMs",
+            "latencyP50Us", "latencyP99Us", "latencyMeanUs", "latencyStdDevUs",
+            "intervalMeanUs", "intervalStdDevUs", "bytesCopied", "allocations",
+            "latencySamplesUs"
+    };
+    private static final long[] NO_SAMPLES = new long[0];
+
+    /**
+     * Numbers of one codec decoding one asset.
+     */
+    public static class Entry {
+        public Entry(String codecName, String assetName, int frames, double fps, double setupMs,
+                double latencyP50Us, double latencyP99Us, double latencyMeanUs,
+                double latencyStdDevUs, double intervalMeanUs, double intervalStdDevUs,
+                long bytesCopied, long allocations) {
+            this(codecName, assetName, frames, fps, setupMs, latencyP50Us, latencyP99Us,
+                    latencyMeanUs, latencyStdDevUs, intervalMeanUs, intervalStdDevUs,
+                    bytesCopied, allocations, NO_SAMPLES);
+        }
+
+        /**
+         * @param latencySamplesUs The latency of every frame, in microseconds.
+         */
+        public Entry(String codecName, String assetName, int frames, double fps, double setupMs,
+                double latencyP50Us, double latencyP99Us, double latencyMeanUs,
+                double latencyStdDevUs, double intervalMeanUs, double intervalStdDevUs,
+                long bytesCopied, long allocations, long[] latencySamplesUs) {
+            mCodecName = codecName;
+            mAssetName = assetName;
+            mFrames = frames;
+            mFps = fps;
+            mSetupMs = setupMs;
+            mLatencyP50Us = latencyP50Us;
+            mLatencyP99Us = latencyP99Us;
+            mLatencyMeanUs = latencyMeanUs;
+            mLatencyStdDevUs = latencyStdDevUs;
+            mIntervalMeanUs = intervalMeanUs;
+            mIntervalStdDevUs = intervalStdDevUs;
+            mBytesCopied = bytesCopied;
+            mAllocations = allocations;
+            mLatencySamplesUs = latencySamplesUs.clone();
+        }
+
+        /**
+         * Summarize the runs of a decode pipeline.
+         */
+        public static Entry from(String codecName, String assetName, DecodePipeline pipeline) {
+            LatencyStats latencies = pipeline.getFrameLatencies();
+            LatencyStats intervals = pipeline.getFrameIntervals();
+            long[] samples = latencies.getSamples();
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = Math.round(samples[i] / 1e3);
+            }
+            return new Entry(codecName, assetName, pipeline.getFrameCount(),
+                    pipeline.getFramesPerSecond(), Math.max(0, pipeline.getSetupNs()) / 1e6,
+                    latencies.getPercentile(50) / 1e3, latencies.getPercentile(99) / 1e3,
+                    latencies.getMean() / 1e3, latencies.getStdDev() / 1e3,
+                    intervals.getMean() / 1e3, intervals.getStdDev() / 1e3,
+                    pipeline.getBytesCopied(), pipeline.getAllocationCount(), samples);
+        }
+
+        public String getCodecName() {
+            return mCodecName;
+        }
+        public String getAssetName() {
+            return mAssetName;
+        }
+        public int getFrames() {
+            return mFrames;
+        }
+        public double getFps() {
+            return mFps;
+        }
+        /** Time from starting the decoder to its first frame. */
+        public double getSetupMs() {
+            return mSetupMs;
+        }
+        public double getLatencyP50Us() {
+            return mLatencyP50Us;
+        }
+        public double getLatencyP99Us() {
+            return mLatencyP99Us;
+        }
+        public double getLatencyMeanUs() {
+            return mLatencyMeanUs;
+        }
+        public double getLatencyStdDevUs() {
+            return mLatencyStdDevUs;
+        }
+        /** Mean time between consecutive frames, the inverse of the steady-state throughput. */
+        public double getIntervalMeanUs() {
+            return mIntervalMeanUs;
+        }
+        public double getIntervalStdDevUs() {
+            return mIntervalStdDevUs;
+        }
+        public long getBytesCopied() {
+            return mBytesCopied;
+        }
+        public long getAllocations() {
+            return mAllocations;
+        }
+        /** Latency of every frame in microseconds, empty if the report had none. */
+        public long[] getLatencySamplesUs() {
+            return mLatencySamplesUs.clone();
+        }
+
+        Object[] values() {
+            return new Object[] {
+                    mCodecName, mAssetName, mFrames, mFps, mSetupMs,
+                    mLatencyP50Us, mLatencyP99Us, mLatencyMeanUs, mLatencyStdDevUs,
+                    mIntervalMeanUs, mIntervalStdDevUs, mBytesCopied, mAllocations,
+                    mLatencySamplesUs
+            };
+        }
+
+        static Entry fromValues(Map<String, String> values) {
+            return new Entry(values.get("codec"), values.get("asset"),
+                    (int) number(values, "frames"), number(values, "fps"),
+                    number(values, "setupMs"), number(values, "latencyP50Us"),
+                    number(values, "latencyP99Us"), number(values, "latencyMeanUs"),
+                    number(values, "latencyStdDevUs"), number(values, "intervalMeanUs"),
+                    number(values, "intervalStdDevUs"), (long) number(values, "bytesCopied"),
+                    (long) number(values, "allocations"), samples(values, "latencySamplesUs"));
+        }
+
+        /** Parse space-separated integers, the form both readers leave samples in. */
+        private static long[] samples(Map<String, String> values, String key) {
+            String value = values.get(key);
+            if (value == null || value.trim().isEmpty()) {
+                return NO_SAMPLES;
+            }
+            String[] fields = value.trim().split("\\s+");
+            long[] samples = new long[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                samples[i] = Long.parseLong(fields[i]);
+            }
+            return samples;
+        }
+
+        private static double number(Map<String, String> values, String key) {
+            String value = values.get(key);
+            if (value == null || value.isEmpty()) {
+                return 0;
+            }
+            return Double.parseDouble(value);
+        }
+
+        private final String mCodecName;
+        private final String mAssetName;
+        private final int mFrames;
+        private final double mFps;
+        private final double mSetupMs;
+        private final double mLatencyP50Us;
+        private final double mLatencyP99Us;
+        private final double mLatencyMeanUs;
+        private final double mLatencyStdDevUs;
+        private final double mIntervalMeanUs;
+        private final double mIntervalStdDevUs;
+        private final long mBytesCopied;
+        private final long mAllocations;
+        private final long[] mLatencySamplesUs;
+    }
+
+    private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+    public synchronized void add(Entry entry) {
+        mEntries.add(entry);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<Entry>(mEntries));
+    }
+
+    /**
+     * Get the entry of a codec and asset, or null if there is none.
+     */
+    public synchronized Entry getEntry(String codecName, String assetName) {
+        for (Entry entry : mEntries) {
+            if (entry.getCodecName().equals(codecName) && entry.getAssetName().equals(assetName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Write the report to {@code <base>.json} and {@code <base>.csv}.
+     */
+    public void write(File base) throws IOException {
+        Writer json = new OutputStreamWriter(
+                new FileOutputStream(base.getPath() + ".json"), UTF_8);
+        try {
+            writeJson(json);
+        } finally {
+            json.close();
+        }
+        Writer csv = new OutputStreamWriter(
+                new FileOutputStream(base.getPath() + ".csv"), UTF_8);
+        try {
+            writeCsv(csv);
+        } finally {
+            csv.close();
+        }
+    }
+
+    public synchronized void writeJson(Writer out) throws IOException {
+        out.write("{\n  \"version\": " + VERSION + ",\n  \"entries\": [");
+        for (int i = 0; i < mEntries.size(); i++) {
+            Object[] values = mEntries.get(i).values();
+            out.write(i == 0 ? "\n    {" : ",\n    {");
+            for (int c = 0; c < COLUMNS.length; c++) {
+                if (c > 0) {
+                    out.write(", ");
+                }
+                out.write(quoteJson(COLUMNS[c]) + ": ");
+                if (values[c] instanceof String) {
+                    out.write(quoteJson((String) values[c]));
+                } else if (values[c] instanceof long[]) {
+                    out.write("[" + join((long[]) values[c], ", ") + "]");
+                } else {
+                    out.write(format(values[c]));
+                }
+            }
+            out.write("}");
+        }
+        out.write("\n  ]\n}\n");
+    }
+
+    public synchronized void writeCsv(Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = 0; c < COLUMNS.length; c++) {
+            line.append(c > 0 ? "," : "").append(COLUMNS[c]);
+        }
+        out.write(line.append('\n').toString());
+        for (Entry entry : mEntries) {
+            Object[] values = entry.values();
+            line.setLength(0);
+            for (int c = 0; c < COLUMNS.length; c++) {
+                line.append(c > 0 ? "," : "");
+                if (values[c] instanceof String) {
+                    line.append(quoteCsv((String) values[c]));
+                } else if (values[c] instanceof long[]) {
+                    line.append(join((long[]) values[c], " "));
+                } else {
+                    line.append(format(values[c]));
+                }
+            }
+            out.write(line.append('\n').toString());
+        }
+    }
+
+    /**
+     * Read a report written by {@link #write}, as JSON or CSV depending on the
+     * file extension.
+     */
+    public static PerfReport read(File file) throws IOException {
+        Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            return file.getName().endsWith(".csv") ? readCsv(in) : readJson(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static PerfReport readCsv(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        PerfReport report = new PerfReport();
+        String header = reader.readLine();
+        if (header == null) {
+            return report;
+        }
+        List<String> columns = splitCsv(header);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            List<String> fields = splitCsv(line);
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (int c = 0; c < columns.size() && c < fields.size(); c++) {
+                values.put(columns.get(c), fields.get(c));
+            }
+            report.add(Entry.fromValues(values));
+        }
+        return report;
+    }
+
+    public static PerfReport readJson(Reader in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buf = new char[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            text.append(buf, 0, len);
+        }
+        PerfReport report = new PerfReport();
+        JsonScanner scanner = new JsonScanner(text.toString());
+        scanner.expect('{');
+        while (!scanner.consume('}')) {
+            String key = scanner.string();
+            scanner.expect(':');
+            if (key.equals("entries")) {
+                scanner.expect('[');
+                while (!scanner.consume(']')) {
+                    report.add(Entry.fromValues(scanner.flatObject()));
+                    scanner.consume(',');
+                }
+            } else {
+                scanner.value();
+            }
+            scanner.consume(',');
+        }
+        return report;
+    }
+
+    private static String format(Object value) {
+        if (value instanceof Double) {
+            return String.format(Locale.US, "%.3f", (Double) value);
+        }
+        return String.valueOf(value);
+    }
+
+    private static String join(long[] values, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            joined.append(i > 0 ? separator : "").append(values[i]);
+        }
+        return joined.toString();
+    }
+
+    private static String quoteJson(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static String quoteCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    private static List<String> splitCsv(String line) {
+        ArrayList<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Minimal scanner for the JSON written by {@link #writeJson}: objects of
+     * strings, numbers and arrays of numbers, and arrays of such objects.
+     */
+    private static class JsonScanner {
+        private final String mText;
+        private int mPos;
+
+        JsonScanner(String text) {
+            mText = text;
+        }
+
+        private void skipSpace() {
+            while (mPos < mText.length() && Character.isWhitespace(mText.charAt(mPos))) {
+                mPos++;
+            }
+        }
+
+        boolean consume(char c) {
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == c) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws IOException {
+            if (!consume(c)) {
+                throw new IOException("Expected '" + c + "' at offset " + mPos);
+            }
+        }
+
+        String string() throws IOException {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (mPos < mText.length()) {
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\' && mPos < mText.length()) {
+                    c = mText.charAt(mPos++);
+                    if (c == 'u' && mPos + 4 <= mText.length()) {
+                        c = (char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16);
+                        mPos += 4;
+                    } else if (c == 'n') {
+                        c = '\n';
+                    } else if (c == 't') {
+                        c = '\t';
+                    }
+                }
+                value.append(c);
+            }
+            throw new IOException("Unterminated string");
+        }
+
+        /**
+         * Read a string, number, literal or array of numbers and return its
+         * text, with the elements of an array separated by spaces.
+         */
+        String value() throws IOException {
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == '"') {
+                return string();
+            }
+            if (consume('[')) {
+                StringBuilder elements = new StringBuilder();
+                while (!consume(']')) {
+                    elements.append(elements.length() > 0 ? " " : "").append(value());
+                    consume(',');
+                }
+                return elements.toString();
+            }
+            int start = mPos;
+            while (mPos < mText.length() && ",}] \t\r\n".indexOf(mText.charAt(mPos)) < 0) {
+                mPos++;
+            }
+            if (start == mPos) {
+                throw new IOException("Expected a value at offset " + mPos);
+            }
+            return mText.substring(start, mPos);
+        }
+
+        Map<String, String> flatObject() throws IOException {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            expect('{');
+            while (!consume('}')) {
+                String key = string();
+                expect(':');
+                values.put(key, value());
+                consume(',');
+            }
+            return values;
+        }
+    }
+}
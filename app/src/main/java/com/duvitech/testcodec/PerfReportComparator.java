@@ -0,0 +1,245 @@
+package com.duvitech.testcodec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares two {@link PerfReport}s and flags statistically significant
+ * throughput and latency regressions.
+ * <p>
+ * A change is only reported when it is both large enough to matter (at least
+ * the minimum relative change) and unlikely to be noise: its score must reach
+ * the minimum t-score. Throughput is scored with Welch's t-test on the frame
+ * intervals behind the means.
+ * </p>
+ * <p>
+ * Latency percentiles are scored from the raw per-frame latencies: the change
+ * of the percentile divided by its standard error, estimated by bootstrap
+ * resampling of both sample sets. A tail regression widens the spread, so a
+ * test on the mean would hide exactly the p99 changes that matter. Entries
+ * without samples fall back to Welch's t-test on the latency mean.
+ * </p>
+ * <p>
+ * Can be run from the command line:
+ * {@code PerfReportComparator <baseline.json|csv> <current.json|csv>}; the exit
+ * status is 1 when regressions were found.
+ * </p>
+ */
+public class PerfReportComparator {
+    /** Default smallest relative change reported, 5%. */
+    public static final double DEFAULT_MIN_CHANGE = 0.05;
+    /** Default smallest t-score reported, about p < 0.003 for large samples. */
+    public static final double DEFAULT_MIN_T_SCORE = 3.0;
+    // resamples used to score a percentile change
+    private static final int BOOTSTRAP_RESAMPLES = 1000;
+    // fixed, so the same reports always give the same verdict
+    private static final long BOOTSTRAP_SEED = 0x7c0dec;
+
+    public static final String METRIC_THROUGHPUT = "throughput";
+    public static final String METRIC_LATENCY_P50 = "latency p50";
+    public static final String METRIC_LATENCY_P99 = "latency p99";
+
+    /**
+     * A metric of a codec and asset that got significantly worse.
+     */
+    public static class Regression {
+        Regression(String codecName, String assetName, String metric,
+                double baseline, double current, double change, double tScore) {
+            mCodecName = codecName;
+            mAssetName = assetName;
+            mMetric = metric;
+            mBaseline = baseline;
+            mCurrent = current;
+            mChange = change;
+            mTScore = tScore;
+        }
+        public String getCodecName() {
+            return mCodecName;
+        }
+        public String getAssetName() {
+            return mAssetName;
+        }
+        /** One of the {@code METRIC_} constants. */
+        public String getMetric() {
+            return mMetric;
+        }
+        /** Baseline value, fps for throughput and microseconds for latency. */
+        public double getBaseline() {
+            return mBaseline;
+        }
+        public double getCurrent() {
+            return mCurrent;
+        }
+        /** Relative change for the worse, 0.1 means 10% worse. */
+        public double getChange() {
+            return mChange;
+        }
+        /** The change in standard errors, from the t-test or the bootstrap. */
+        public double getTScore() {
+            return mTScore;
+        }
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s: %s %.1f -> %.1f (%.1f%% worse, t=%.1f)",
+                    mCodecName, mAssetName, mMetric, mBaseline, mCurrent, mChange * 100,
+                    mTScore);
+        }
+        private final String mCodecName;
+        private final String mAssetName;
+        private final String mMetric;
+        private final double mBaseline;
+        private final double mCurrent;
+        private final double mChange;
+        private final double mTScore;
+    }
+
+    private final double mMinChange;
+    private final double mMinTScore;
+
+    public PerfReportComparator() {
+        this(DEFAULT_MIN_CHANGE, DEFAULT_MIN_T_SCORE);
+    }
+
+    /**
+     * @param minChange The smallest relative change reported.
+     * @param minTScore The smallest t-score reported.
+     */
+    public PerfReportComparator(double minChange, double minTScore) {
+        mMinChange = minChange;
+        mMinTScore = minTScore;
+    }
+
+    /**
+     * Find the regressions of {@code current} against {@code baseline}. Entries
+     * only present in one of the reports are ignored.
+     */
+    public List<Regression> compare(PerfReport baseline, PerfReport current) {
+        ArrayList<Regression> regressions = new ArrayList<Regression>();
+        for (PerfReport.Entry base : baseline.getEntries()) {
+            PerfReport.Entry cur = current.getEntry(base.getCodecName(), base.getAssetName());
+            if (cur == null) {
+                continue;
+            }
+            double intervalT = welchT(
+                    base.getIntervalMeanUs(), base.getIntervalStdDevUs(), base.getFrames() - 1,
+                    cur.getIntervalMeanUs(), cur.getIntervalStdDevUs(), cur.getFrames() - 1);
+            if (base.getFps() > 0) {
+                double drop = (base.getFps() - cur.getFps()) / base.getFps();
+                if (drop >= mMinChange && intervalT >= mMinTScore) {
+                    regressions.add(new Regression(base.getCodecName(), base.getAssetName(),
+                            METRIC_THROUGHPUT, base.getFps(), cur.getFps(), drop, intervalT));
+                }
+            }
+            long[] baseSamples = base.getLatencySamplesUs();
+            long[] curSamples = cur.getLatencySamplesUs();
+            if (baseSamples.length >= 2 && curSamples.length >= 2) {
+                checkIncrease(regressions, base, METRIC_LATENCY_P50,
+                        base.getLatencyP50Us(), cur.getLatencyP50Us(),
+                        bootstrapScore(baseSamples, curSamples, 50));
+                checkIncrease(regressions, base, METRIC_LATENCY_P99,
+                        base.getLatencyP99Us(), cur.getLatencyP99Us(),
+                        bootstrapScore(baseSamples, curSamples, 99));
+            } else {
+                double latencyT = welchT(
+                        base.getLatencyMeanUs(), base.getLatencyStdDevUs(), base.getFrames(),
+                        cur.getLatencyMeanUs(), cur.getLatencyStdDevUs(), cur.getFrames());
+                checkIncrease(regressions, base, METRIC_LATENCY_P50,
+                        base.getLatencyP50Us(), cur.getLatencyP50Us(), latencyT);
+                checkIncrease(regressions, base, METRIC_LATENCY_P99,
+                        base.getLatencyP99Us(), cur.getLatencyP99Us(), latencyT);
+            }
+        }
+        return regressions;
+    }
+
+    private void checkIncrease(List<Regression> regressions, PerfReport.Entry base,
+            String metric, double baseline, double current, double tScore) {
+        if (baseline <= 0 || tScore < mMinTScore) {
+            return;
+        }
+        double increase = (current - baseline) / baseline;
+        if (increase >= mMinChange) {
+            regressions.add(new Regression(base.getCodecName(), base.getAssetName(), metric,
+                    baseline, current, increase, tScore));
+        }
+    }
+
+    /**
+     * Score of a percentile getting larger from {@code baseline} to
+     * {@code current}: the observed difference over its bootstrap standard
+     * error.
+     */
+    static double bootstrapScore(long[] baseline, long[] current, double percentile) {
+        long[] sortedBaseline = baseline.clone();
+        Arrays.sort(sortedBaseline);
+        long[] sortedCurrent = current.clone();
+        Arrays.sort(sortedCurrent);
+        double diff = LatencyStats.getPercentile(sortedCurrent, current.length, percentile)
+                - LatencyStats.getPercentile(sortedBaseline, baseline.length, percentile);
+
+        Random random = new Random(BOOTSTRAP_SEED);
+        long[] baselineScratch = new long[baseline.length];
+        long[] currentScratch = new long[current.length];
+        double sum = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < BOOTSTRAP_RESAMPLES; i++) {
+            double resampled = resamplePercentile(current, currentScratch, percentile, random)
+                    - resamplePercentile(baseline, baselineScratch, percentile, random);
+            sum += resampled;
+            sumSquares += resampled * resampled;
+        }
+        double mean = sum / BOOTSTRAP_RESAMPLES;
+        double variance = Math.max(0,
+                (sumSquares - BOOTSTRAP_RESAMPLES * mean * mean) / (BOOTSTRAP_RESAMPLES - 1));
+        double standardError = Math.sqrt(variance);
+        if (standardError == 0) {
+            return diff > 0 ? Double.POSITIVE_INFINITY : 0;
+        }
+        return diff / standardError;
+    }
+
+    private static long resamplePercentile(long[] samples, long[] scratch, double percentile,
+            Random random) {
+        for (int i = 0; i < scratch.length; i++) {
+            scratch[i] = samples[random.nextInt(samples.length)];
+        }
+        Arrays.sort(scratch);
+        return LatencyStats.getPercentile(scratch, scratch.length, percentile);
+    }
+
+    /**
+     * Welch's t-score for the second mean being larger than the first.
+     */
+    static double welchT(double mean1, double stdDev1, int n1,
+            double mean2, double stdDev2, int n2) {
+        if (n1 < 2 || n2 < 2) {
+            return 0;
+        }
+        double standardError = Math.sqrt(stdDev1 * stdDev1 / n1 + stdDev2 * stdDev2 / n2);
+        double diff = mean2 - mean1;
+        if (standardError == 0) {
+            return diff > 0 ? Double.POSITIVE_INFINITY : 0;
+        }
+        return diff / standardError;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("usage: PerfReportComparator <baseline> <current>");
+            System.exit(2);
+        }
+        PerfReport baseline = PerfReport.read(new File(args[0]));
+        PerfReport current = PerfReport.read(new File(args[1]));
+        List<Regression> regressions = new PerfReportComparator().compare(baseline, current);
+        for (Regression regression : regressions) {
+            System.out.println(regression);
+        }
+        System.out.println(regressions.size() + " regression(s) in "
+                + current.getEntries().size() + " entries");
+        System.exit(regressions.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,26 @@
+package com.duvitech.testcodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of compressed samples for the decode pipeline, shaped after
+ * {@link android.media.MediaExtractor MediaExtractor} with a track selected.
+ */
+public interface SampleSource {
+    /**
+     * Read the current sample into {@code buffer} at {@code offset}.
+     *
+     * @return The sample size in bytes, or -1 when there are no more samples.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /** Presentation time of the current sample in microseconds. */
+    long getSampleTime();
+
+    /**
+     * Move to the next sample.
+     *
+     * @return false when there are no more samples.
+     */
+    boolean advance();
+}
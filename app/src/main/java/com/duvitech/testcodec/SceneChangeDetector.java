@@ -0,0 +1,322 @@
+package com.duvitech.testcodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Streaming scene-cut and motion-activity detector for a sequence of frames.
+ * <p>
+ * Each frame is reduced to a small signature read straight from its strided Y
+ * plane: the luma sum of every {@link #BLOCK_SIZE}x{@link #BLOCK_SIZE} block,
+ * sampled on a sparse grid, plus a luma histogram. Only the signature of the
+ * previous frame is kept. Comparing consecutive signatures gives
+ * </p>
+ * <ul>
+ *   <li>an activity score, the mean absolute block difference scaled to [0, 1],
+ *       which follows the amount of motion, and</li>
+ *   <li>a histogram distance in [0, 1], which jumps when the content changes.</li>
+ * </ul>
+ * <p>
+ * A frame is reported as a scene cut when the histogram distance reaches the
+ * cut threshold, or when its activity spikes well above the recent average.
+ * The average restarts from the first activity after every cut, so sustained
+ * fast motion is a moving shot rather than a cut on every frame. The first
+ * frame, and the first frame after a size change, always starts a new scene.
+ * Tall frames are processed in row bands on the shared {@link FrameWorkers}
+ * pool.
+ * </p>
+ * <p>
+ * A detector follows a single stream and is not thread-safe.
+ * </p>
+ */
+public class SceneChangeDetector {
+
+    /** Width and height of a signature block, in luma pixels. */
+    public static final int BLOCK_SIZE = 16;
+    /** Default histogram distance at which a frame is reported as a scene cut. */
+    public static final float DEFAULT_CUT_THRESHOLD = 0.4f;
+
+    // distance between sampled pixels inside a block, in both directions
+    private static final int SAMPLE_STEP = 4;
+    private static final int SAMPLES_PER_BLOCK =
+            (BLOCK_SIZE / SAMPLE_STEP) * (BLOCK_SIZE / SAMPLE_STEP);
+    private static final int HISTOGRAM_SHIFT = 3;
+    private static final int HISTOGRAM_BINS = 256 >> HISTOGRAM_SHIFT;
+    // an activity spike this many times over the running mean is a cut
+    private static final float ACTIVITY_CUT_RATIO = 4f;
+    private static final float MIN_CUT_ACTIVITY = 0.08f;
+    private static final float ACTIVITY_SMOOTHING = 0.1f;
+    // a band gets at least this many block rows (256 lines), so frames with
+    // fewer than twice that are processed on a single thread
+    private static final int MIN_BAND_BLOCK_ROWS = 16;
+
+    /**
+     * Scores of a single frame.
+     */
+    public static class Result {
+        Result(int frameNumber, long timestamp, float activity, float histogramDistance,
+                boolean sceneCut) {
+            mFrameNumber = frameNumber;
+            mTimestamp = timestamp;
+            mActivity = activity;
+            mHistogramDistance = histogramDistance;
+            mSceneCut = sceneCut;
+        }
+        /** Index of the frame since the detector was created or {@link #reset}. */
+        public int getFrameNumber() {
+            return mFrameNumber;
+        }
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+        /** Mean absolute block difference to the previous frame, in [0, 1]. */
+        public float getActivity() {
+            return mActivity;
+        }
+        /** Luma histogram distance to the previous frame, in [0, 1]. */
+        public float getHistogramDistance() {
+            return mHistogramDistance;
+        }
+        /** Whether this frame starts a new scene. */
+        public boolean isSceneCut() {
+            return mSceneCut;
+        }
+        @Override
+        public String toString() {
+            return "frame " + mFrameNumber + " activity " + mActivity
+                    + " histogram " + mHistogramDistance + (mSceneCut ? " (cut)" : "");
+        }
+        private final int mFrameNumber;
+        private final long mTimestamp;
+        private final float mActivity;
+        private final float mHistogramDistance;
+        private final boolean mSceneCut;
+    }
+
+    private final float mCutThreshold;
+    // row bands run here, null to process every frame on the calling thread
+    private final ForkJoinPool mPool;
+
+    private int mGridWidth;
+    private int mGridHeight;
+    private int[] mSignature;
+    private int[] mPrevSignature;
+    private int[][] mBandHistograms;
+    private int[] mHistogram = new int[HISTOGRAM_BINS];
+    private int[] mPrevHistogram = new int[HISTOGRAM_BINS];
+    private boolean mHasPrevious;
+    private float mMeanActivity;
+    // whether mMeanActivity holds an activity of the current scene yet
+    private boolean mHasMeanActivity;
+    private int mFrameNumber;
+
+    public SceneChangeDetector() {
+        this(DEFAULT_CUT_THRESHOLD, true /* parallel */);
+    }
+
+    /**
+     * @param cutThreshold The histogram distance at which a frame is a scene cut.
+     * @param parallel Whether tall frames may be split into row bands.
+     */
+    public SceneChangeDetector(float cutThreshold, boolean parallel) {
+        this(cutThreshold, parallel ? FrameWorkers.getPool() : null);
+    }
+
+    /**
+     * @param cutThreshold The histogram distance at which a frame is a scene cut.
+     * @param pool The pool tall frames are split into row bands on, at most one
+     *             band per worker, or null to process them on the calling thread.
+     */
+    SceneChangeDetector(float cutThreshold, ForkJoinPool pool) {
+        mCutThreshold = cutThreshold;
+        mPool = pool;
+    }
+
+    /**
+     * Forget the previous frame; the next frame starts a new scene.
+     */
+    public void reset() {
+        mHasPrevious = false;
+        mMeanActivity = 0;
+        mHasMeanActivity = false;
+        mFrameNumber = 0;
+    }
+
+    /**
+     * Score the next frame of the stream from the Y plane of an image.
+     */
+    public Result process(CodecImage image) {
+        CodecImage.Plane luma = image.getPlanes()[0];
+        return process(luma.getBuffer(), luma.getRowStride(), luma.getPixelStride(),
+                image.getCropLeft(), image.getCropTop(), image.getCropWidth(),
+                image.getCropHeight(), image.getTimestamp());
+    }
+
+    /**
+     * Score the next frame of the stream from a strided luma plane.
+     *
+     * @param luma The luma plane, starting at its current position.
+     *             The buffer position is not changed.
+     * @param rowStride The distance between rows, in bytes.
+     * @param pixelStride The distance between pixels, in bytes.
+     * @param left The first column of the region to score.
+     * @param top The first row of the region to score.
+     * @param width The width of the region to score.
+     * @param height The height of the region to score.
+     * @param timestamp The timestamp of the frame, reported back in the result.
+     */
+    public Result process(ByteBuffer luma, int rowStride, int pixelStride,
+            int left, int top, int width, int height, long timestamp) {
+        int gridWidth = Math.max(1, width / BLOCK_SIZE);
+        int gridHeight = Math.max(1, height / BLOCK_SIZE);
+        if (gridWidth != mGridWidth || gridHeight != mGridHeight) {
+            mGridWidth = gridWidth;
+            mGridHeight = gridHeight;
+            mSignature = new int[gridWidth * gridHeight];
+            mPrevSignature = new int[gridWidth * gridHeight];
+            mHasPrevious = false;
+        }
+        // a region smaller than a block is sampled as one shrunken block;
+        // partial blocks at the right and bottom edges are not sampled
+        int blockWidth = Math.min(BLOCK_SIZE, width);
+        int blockHeight = Math.min(BLOCK_SIZE, height);
+        int base = luma.position() + top * rowStride + left * pixelStride;
+
+        int bands = 1;
+        if (mPool != null && gridHeight >= 2 * MIN_BAND_BLOCK_ROWS) {
+            bands = Math.max(1,
+                    Math.min(mPool.getParallelism(), gridHeight / MIN_BAND_BLOCK_ROWS));
+        }
+        if (mBandHistograms == null || mBandHistograms.length < bands) {
+            mBandHistograms = new int[bands][HISTOGRAM_BINS];
+        }
+        if (bands == 1) {
+            computeBand(luma, base, rowStride, pixelStride, blockWidth, blockHeight,
+                    0, gridHeight, mBandHistograms[0]);
+        } else {
+            final BandTask[] tasks = new BandTask[bands];
+            for (int i = 0; i < bands; i++) {
+                tasks[i] = new BandTask(luma, base, rowStride, pixelStride,
+                        blockWidth, blockHeight, gridHeight * i / bands,
+                        gridHeight * (i + 1) / bands, mBandHistograms[i]);
+            }
+            mPool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        Arrays.fill(mHistogram, 0);
+        for (int i = 0; i < bands; i++) {
+            int[] bandHistogram = mBandHistograms[i];
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+                mHistogram[bin] += bandHistogram[bin];
+            }
+        }
+
+        float activity = 0;
+        float histogramDistance = 0;
+        boolean sceneCut = true;
+        if (mHasPrevious) {
+            long sad = 0;
+            for (int i = 0; i < mSignature.length; i++) {
+                sad += Math.abs(mSignature[i] - mPrevSignature[i]);
+            }
+            activity = (float) sad / ((long) mSignature.length * SAMPLES_PER_BLOCK * 255);
+            long histogramDiff = 0;
+            for (int bin = 0; bin < HISTOGRAM_BINS; bin++) {
+                histogramDiff += Math.abs(mHistogram[bin] - mPrevHistogram[bin]);
+            }
+            histogramDistance =
+                    (float) histogramDiff / (2L * mSignature.length * SAMPLES_PER_BLOCK);
+            // a spike needs an average to stand out from; the first activity
+            // of a scene only seeds it
+            sceneCut = histogramDistance >= mCutThreshold
+                    || (mHasMeanActivity && activity >= MIN_CUT_ACTIVITY
+                            && activity >= ACTIVITY_CUT_RATIO * mMeanActivity);
+            if (!sceneCut) {
+                if (mHasMeanActivity) {
+                    mMeanActivity += ACTIVITY_SMOOTHING * (activity - mMeanActivity);
+                } else {
+                    mMeanActivity = activity;
+                    mHasMeanActivity = true;
+                }
+            }
+        }
+        if (sceneCut) {
+            mMeanActivity = 0;
+            mHasMeanActivity = false;
+        }
+
+        int[] signature = mPrevSignature;
+        mPrevSignature = mSignature;
+        mSignature = signature;
+        int[] histogram = mPrevHistogram;
+        mPrevHistogram = mHistogram;
+        mHistogram = histogram;
+        mHasPrevious = true;
+        return new Result(mFrameNumber++, timestamp, activity, histogramDistance, sceneCut);
+    }
+
+    private void computeBand(ByteBuffer luma, int base, int rowStride, int pixelStride,
+            int blockWidth, int blockHeight, int firstBlockRow, int endBlockRow,
+            int[] histogram) {
+        int[] signature = mSignature;
+        int gridWidth = mGridWidth;
+        int sampleOffset = SAMPLE_STEP / 2;
+        Arrays.fill(histogram, 0);
+        for (int by = firstBlockRow; by < endBlockRow; by++) {
+            int blockBase = by * gridWidth;
+            Arrays.fill(signature, blockBase, blockBase + gridWidth, 0);
+            for (int sy = sampleOffset; sy < BLOCK_SIZE; sy += SAMPLE_STEP) {
+                int row = by * blockHeight + sy * blockHeight / BLOCK_SIZE;
+                int rowBase = base + row * rowStride;
+                for (int bx = 0; bx < gridWidth; bx++) {
+                    int sum = 0;
+                    for (int sx = sampleOffset; sx < BLOCK_SIZE; sx += SAMPLE_STEP) {
+                        int col = bx * blockWidth + sx * blockWidth / BLOCK_SIZE;
+                        int value = luma.get(rowBase + col * pixelStride) & 0xff;
+                        sum += value;
+                        histogram[value >> HISTOGRAM_SHIFT]++;
+                    }
+                    signature[blockBase + bx] += sum;
+                }
+            }
+        }
+    }
+
+    private class BandTask extends RecursiveAction {
+        private final ByteBuffer mLuma;
+        private final int mBase;
+        private final int mRowStride;
+        private final int mPixelStride;
+        private final int mBlockWidth;
+        private final int mBlockHeight;
+        private final int mFirstBlockRow;
+        private final int mEndBlockRow;
+        private final int[] mHistogram;
+
+        BandTask(ByteBuffer luma, int base, int rowStride, int pixelStride,
+                int blockWidth, int blockHeight, int firstBlockRow, int endBlockRow,
+                int[] histogram) {
+            mLuma = luma;
+            mBase = base;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+            mBlockWidth = blockWidth;
+            mBlockHeight = blockHeight;
+            mFirstBlockRow = firstBlockRow;
+            mEndBlockRow = endBlockRow;
+            mHistogram = histogram;
+        }
+
+        @Override
+        protected void compute() {
+            computeBand(mLuma, mBase, mRowStride, mPixelStride, mBlockWidth, mBlockHeight,
+                    mFirstBlockRow, mEndBlockRow, mHistogram);
+        }
+    }
+}
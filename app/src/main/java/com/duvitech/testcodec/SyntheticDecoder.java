@@ -0,0 +1,546 @@
+package com.duvitech.testcodec;
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Deterministic software stand-in for a video decoder.
+ * <p>
+ * Every input sample carries a frame number (see {@link Source}); decoding it
+ * renders a synthetic YUV 4:2:0 frame for that number, either a rotating swirl
+ * or a moving gradient, so the same stream always decodes to the same frames.
+ * Per-frame latency, the number of input and output buffers, row stride
+ * padding and the chroma layout (planar or semi-planar) are configurable, which
+ * lets the whole feed/drain/validate pipeline run, and be benchmarked, on a
+ * plain JVM.
+ * </p>
+ * <p>
+ * Like a hardware decoder, an input buffer is held until its frame has been
+ * decoded, and a frame is only decoded when an output buffer is free.
+ * Configuration setters must be called before {@link #start}.
+ * </p>
+ */
+public class SyntheticDecoder implements FrameDecoder {
+
+    /** Swirl around the frame center, rotating from frame to frame. */
+    public static final int PATTERN_SWIRL = 0;
+    /** Diagonal gradient, moving from frame to frame. */
+    public static final int PATTERN_GRADIENT = 1;
+
+    private static final int INPUT_BUFFER_SIZE = 64;
+    // luma offset added per frame, so the pattern moves
+    private static final int FRAME_STEP = 4;
+
+    /**
+     * Sample source feeding a {@link SyntheticDecoder}. Each sample holds its
+     * frame number as a 4-byte integer.
+     */
+    public static class Source implements SampleSource {
+        private final int mFrameCount;
+        private final float mFrameRate;
+        private int mFrame;
+
+        /**
+         * @param frameCount The number of samples in the stream.
+         * @param frameRate The frame rate used for the presentation times.
+         */
+        public Source(int frameCount, float frameRate) {
+            mFrameCount = frameCount;
+            mFrameRate = frameRate;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buffer, int offset) {
+            if (mFrame >= mFrameCount) {
+                return -1;
+            }
+            buffer.putInt(offset, mFrame);
+            return 4;
+        }
+
+        @Override
+        public long getSampleTime() {
+            return (long) (mFrame * 1000000L / mFrameRate);
+        }
+
+        @Override
+        public boolean advance() {
+            mFrame++;
+            return mFrame < mFrameCount;
+        }
+    }
+
+    private static class Job {
+        int mInputIndex;
+        int mFrameNumber;
+        int mSize;
+        long mPresentationTimeUs;
+        int mFlags;
+        long mReadyAtNs;
+    }
+
+    private static class Output {
+        ByteBuffer mY;
+        ByteBuffer mU;
+        ByteBuffer mV;
+        boolean mDequeued;
+        boolean mImageOut;
+        long mPresentationTimeUs;
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private String mName = "synthetic.decoder";
+    private int mPattern = PATTERN_SWIRL;
+    private long mFrameLatencyUs;
+    private int mInputBufferCount = 4;
+    private int mOutputBufferCount = 4;
+    private int mStridePadding;
+    private int mChromaPixelStride = 1;
+
+    private boolean mStarted;
+    private boolean mFormatReported;
+    private ByteBuffer[] mInputBuffers;
+    private boolean[] mInputBusy;
+    private Output[] mOutputs;
+    private final ArrayDeque<Job> mJobs = new ArrayDeque<Job>();
+    private long mLastReadyNs;
+    private byte[] mBaseLuma;
+    private byte[] mRow;
+
+    /**
+     * @param width The width of the decoded frames, must be even.
+     * @param height The height of the decoded frames, must be even.
+     */
+    public SyntheticDecoder(int width, int height) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /** Set the name reported by {@link #getName}. */
+    public SyntheticDecoder setName(String name) {
+        checkNotStarted();
+        mName = name;
+        return this;
+    }
+
+    /** Set the pattern, {@link #PATTERN_SWIRL} or {@link #PATTERN_GRADIENT}. */
+    public SyntheticDecoder setPattern(int pattern) {
+        checkNotStarted();
+        if (pattern != PATTERN_SWIRL && pattern != PATTERN_GRADIENT) {
+            throw new IllegalArgumentException("Unknown pattern " + pattern);
+        }
+        mPattern = pattern;
+        return this;
+    }
+
+    /** Set the time it takes to decode a frame, frames are decoded one at a time. */
+    public SyntheticDecoder setFrameLatencyUs(long latencyUs) {
+        checkNotStarted();
+        mFrameLatencyUs = latencyUs;
+        return this;
+    }
+
+    /** Set the number of input and output buffers. */
+    public SyntheticDecoder setBufferCounts(int inputBuffers, int outputBuffers) {
+        checkNotStarted();
+        if (inputBuffers <= 0 || outputBuffers <= 0) {
+            throw new IllegalArgumentException("Buffer counts must be positive");
+        }
+        mInputBufferCount = inputBuffers;
+        mOutputBufferCount = outputBuffers;
+        return this;
+    }
+
+    /** Set the number of padding bytes at the end of every luma row. */
+    public SyntheticDecoder setStridePadding(int padding) {
+        checkNotStarted();
+        if (padding < 0 || padding % 2 != 0) {
+            throw new IllegalArgumentException("Invalid stride padding " + padding);
+        }
+        mStridePadding = padding;
+        return this;
+    }
+
+    /**
+     * Set the chroma pixel stride: 1 for planar output (I420), 2 for interleaved,
+     * semi-planar output (NV12).
+     */
+    public SyntheticDecoder setChromaPixelStride(int pixelStride) {
+        checkNotStarted();
+        if (pixelStride != 1 && pixelStride != 2) {
+            throw new IllegalArgumentException("Invalid chroma pixel stride " + pixelStride);
+        }
+        mChromaPixelStride = pixelStride;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public synchronized void start() {
+        checkNotStarted();
+        mInputBuffers = new ByteBuffer[mInputBufferCount];
+        mInputBusy = new boolean[mInputBufferCount];
+        for (int i = 0; i < mInputBufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+        }
+        int lumaStride = mWidth + mStridePadding;
+        int chromaHeight = mHeight / 2;
+        mOutputs = new Output[mOutputBufferCount];
+        for (int i = 0; i < mOutputBufferCount; i++) {
+            Output output = new Output();
+            output.mY = ByteBuffer.allocateDirect(lumaStride * mHeight);
+            if (mChromaPixelStride == 1) {
+                int chromaStride = lumaStride / 2;
+                output.mU = ByteBuffer.allocateDirect(chromaStride * chromaHeight);
+                output.mV = ByteBuffer.allocateDirect(chromaStride * chromaHeight);
+            } else {
+                ByteBuffer uv = ByteBuffer.allocateDirect(lumaStride * chromaHeight);
+                uv.limit(uv.capacity() - 1);
+                output.mU = uv.slice();
+                uv.limit(uv.capacity());
+                uv.position(1);
+                output.mV = uv.slice();
+            }
+            mOutputs[i] = output;
+        }
+        mBaseLuma = createBaseLuma();
+        mRow = new byte[lumaStride];
+        mStarted = true;
+    }
+
+    private byte[] createBaseLuma() {
+        byte[] base = new byte[mWidth * mHeight];
+        int cx = mWidth / 2;
+        int cy = mHeight / 2;
+        double ringScale = 512.0 / Math.min(mWidth, mHeight);
+        for (int y = 0; y < mHeight; y++) {
+            for (int x = 0; x < mWidth; x++) {
+                int value;
+                if (mPattern == PATTERN_SWIRL) {
+                    double dx = x - cx;
+                    double dy = y - cy;
+                    double angle = Math.atan2(dy, dx) * 128 / Math.PI;
+                    value = (int) (angle + Math.sqrt(dx * dx + dy * dy) * ringScale);
+                } else {
+                    value = x * 255 / mWidth / 2 + y * 255 / mHeight / 2;
+                }
+                base[y * mWidth + x] = (byte) value;
+            }
+        }
+        return base;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        checkStarted();
+        for (int i = 0; i < mInputBusy.length; i++) {
+            if (!mInputBusy[i]) {
+                mInputBusy[i] = true;
+                mInputBuffers[i].clear();
+                return i;
+            }
+        }
+        // inputs are only freed by dequeueOutputBuffer, waiting here can't help
+        return INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public synchronized ByteBuffer getInputBuffer(int index) {
+        checkStarted();
+        if (!mInputBusy[index]) {
+            throw new IllegalStateException("Input buffer " + index + " is not dequeued");
+        }
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public synchronized void queueInputBuffer(
+            int index, int offset, int size, long presentationTimeUs, int flags) {
+        checkStarted();
+        if (!mInputBusy[index]) {
+            throw new IllegalStateException("Input buffer " + index + " is not dequeued");
+        }
+        Job job = new Job();
+        job.mInputIndex = index;
+        job.mSize = size;
+        job.mFrameNumber = size >= 4 ? mInputBuffers[index].getInt(offset) : 0;
+        job.mPresentationTimeUs = presentationTimeUs;
+        job.mFlags = flags;
+        long now = System.nanoTime();
+        job.mReadyAtNs = Math.max(now, mLastReadyNs) + (size > 0 ? mFrameLatencyUs * 1000 : 0);
+        mLastReadyNs = job.mReadyAtNs;
+        mJobs.add(job);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(BufferInfo info, long timeoutUs) {
+        Job job;
+        int index = -1;
+        long waitNs;
+        synchronized (this) {
+            checkStarted();
+            if (!mFormatReported) {
+                mFormatReported = true;
+                return INFO_OUTPUT_FORMAT_CHANGED;
+            }
+            job = mJobs.peek();
+            if (job == null) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            for (int i = 0; i < mOutputs.length; i++) {
+                if (!mOutputs[i].mDequeued) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return INFO_TRY_AGAIN_LATER;
+            }
+            waitNs = job.mReadyAtNs - System.nanoTime();
+        }
+        if (waitNs > 0) {
+            if (waitNs > timeoutUs * 1000) {
+                LockSupport.parkNanos(timeoutUs * 1000);
+                return INFO_TRY_AGAIN_LATER;
+            }
+            long deadline = job.mReadyAtNs;
+            while ((waitNs = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNs);
+            }
+        }
+        synchronized (this) {
+            mJobs.remove();
+            mInputBusy[job.mInputIndex] = false;
+            Output output = mOutputs[index];
+            output.mDequeued = true;
+            output.mPresentationTimeUs = job.mPresentationTimeUs;
+            int size = 0;
+            if (job.mSize > 0) {
+                render(job.mFrameNumber, output);
+                size = (mWidth + mStridePadding) * mHeight * 3 / 2;
+            }
+            info.set(0, size, job.mPresentationTimeUs, job.mFlags & BUFFER_FLAG_END_OF_STREAM);
+        }
+        return index;
+    }
+
+    private void render(int frameNumber, Output output) {
+        int lumaStride = mWidth + mStridePadding;
+        int shift = frameNumber * FRAME_STEP;
+        for (int y = 0; y < mHeight; y++) {
+            int base = y * mWidth;
+            for (int x = 0; x < mWidth; x++) {
+                mRow[x] = (byte) (mBaseLuma[base + x] + shift);
+            }
+            output.mY.position(y * lumaStride);
+            output.mY.put(mRow, 0, mWidth);
+        }
+        output.mY.clear();
+        int chromaWidth = mWidth / 2;
+        int chromaStride = mChromaPixelStride == 1 ? lumaStride / 2 : lumaStride;
+        for (int y = 0; y < mHeight / 2; y++) {
+            int row = y * chromaStride;
+            for (int x = 0; x < chromaWidth; x++) {
+                int pos = row + x * mChromaPixelStride;
+                output.mU.put(pos, expectedChroma(x, frameNumber));
+                output.mV.put(pos, expectedChroma(y, -frameNumber));
+            }
+        }
+    }
+
+    private static byte expectedChroma(int position, int frameNumber) {
+        return (byte) (128 + ((position + frameNumber) & 0x3f) - 32);
+    }
+
+    /**
+     * Get the packed content of a decoded frame, in the layout produced by
+     * {@link FrameExtractor}, for comparing against what the pipeline extracted.
+     * The decoder must be started.
+     */
+    public synchronized byte[] getExpectedFrame(int frameNumber) {
+        checkStarted();
+        int chromaWidth = mWidth / 2;
+        int chromaHeight = mHeight / 2;
+        int lumaSize = mWidth * mHeight;
+        int chromaSize = chromaWidth * chromaHeight;
+        byte[] frame = new byte[lumaSize + 2 * chromaSize];
+        int shift = frameNumber * FRAME_STEP;
+        for (int i = 0; i < lumaSize; i++) {
+            frame[i] = (byte) (mBaseLuma[i] + shift);
+        }
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                frame[lumaSize + y * chromaWidth + x] = expectedChroma(x, frameNumber);
+                frame[lumaSize + chromaSize + y * chromaWidth + x] =
+                        expectedChroma(y, -frameNumber);
+            }
+        }
+        return frame;
+    }
+
+    @Override
+    public synchronized CodecImage getOutputImage(int index) {
+        checkStarted();
+        Output output = mOutputs[index];
+        if (!output.mDequeued || output.mImageOut) {
+            throw new IllegalStateException("Output buffer " + index + " is not available");
+        }
+        output.mImageOut = true;
+        return CodecImage.track(new SyntheticImage(index, output));
+    }
+
+    @Override
+    public synchronized void releaseOutputBuffer(int index) {
+        checkStarted();
+        Output output = mOutputs[index];
+        if (!output.mDequeued || output.mImageOut) {
+            throw new IllegalStateException("Output buffer " + index + " is not dequeued");
+        }
+        output.mDequeued = false;
+    }
+
+    private synchronized void onImageClosed(int index) {
+        if (mOutputs != null && mOutputs[index].mImageOut) {
+            mOutputs[index].mImageOut = false;
+            mOutputs[index].mDequeued = false;
+        }
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStarted = false;
+        mFormatReported = false;
+        mJobs.clear();
+        mLastReadyNs = 0;
+    }
+
+    @Override
+    public synchronized void release() {
+        stop();
+        mInputBuffers = null;
+        mOutputs = null;
+        mBaseLuma = null;
+    }
+
+    private void checkStarted() {
+        if (!mStarted) {
+            throw new IllegalStateException("Decoder is not started");
+        }
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Decoder is already started");
+        }
+    }
+
+    private class SyntheticImage extends CodecImage {
+        private final int mIndex;
+        private final Plane[] mPlanes;
+        private final long mTimestamp;
+        private boolean mClosed;
+
+        SyntheticImage(int index, Output output) {
+            mIndex = index;
+            mTimestamp = output.mPresentationTimeUs * 1000;
+            int lumaStride = mWidth + mStridePadding;
+            int chromaStride = mChromaPixelStride == 1 ? lumaStride / 2 : lumaStride;
+            mPlanes = new Plane[] {
+                    new SyntheticPlane(output.mY, lumaStride, 1),
+                    new SyntheticPlane(output.mU, chromaStride, mChromaPixelStride),
+                    new SyntheticPlane(output.mV, chromaStride, mChromaPixelStride)
+            };
+        }
+
+        @Override
+        public int getFormat() {
+            checkValid();
+            return ImageFormat.YUV_420_888;
+        }
+
+        @Override
+        public int getWidth() {
+            checkValid();
+            return mWidth;
+        }
+
+        @Override
+        public int getHeight() {
+            checkValid();
+            return mHeight;
+        }
+
+        @Override
+        public long getTimestamp() {
+            checkValid();
+            return mTimestamp;
+        }
+
+        @Override
+        public Plane[] getPlanes() {
+            checkValid();
+            return mPlanes;
+        }
+
+        @Override
+        public synchronized void close() {
+            untrack();
+            if (!mClosed) {
+                mClosed = true;
+                onImageClosed(mIndex);
+            }
+        }
+
+        private synchronized void checkValid() {
+            if (mClosed) {
+                throw new IllegalStateException("Image is already closed");
+            }
+        }
+    }
+
+    private static class SyntheticPlane extends CodecImage.Plane {
+        private final ByteBuffer mBuffer;
+        private final int mRowStride;
+        private final int mPixelStride;
+
+        SyntheticPlane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        @Override
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        @Override
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer.duplicate();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.duvitech.testcodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for the reference counting in {@link CodecImage}.
+ */
+public class CodecImageTest {
+
+    private static class CountingImage extends CodecImage {
+        final AtomicInteger mCloseCount = new AtomicInteger();
+        @Override
+        public int getFormat() {
+            return 0;
+        }
+        @Override
+        public int getWidth() {
+            return 0;
+        }
+        @Override
+        public int getHeight() {
+            return 0;
+        }
+        @Override
+        public long getTimestamp() {
+            return 0;
+        }
+        @Override
+        public Plane[] getPlanes() {
+            return new Plane[0];
+        }
+        @Override
+        public void close() {
+            untrack();
+            mCloseCount.incrementAndGet();
+        }
+    }
+
+    private static class BrokenImage extends CountingImage {
+        BrokenImage() {
+            throw new IllegalArgumentException("no planes");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        CodecImage.setLeakTrackingEnabled(false);
+    }
+
+    @Test
+    public void release_closesOnLastReference() {
+        CountingImage image = new CountingImage();
+        image.retain().retain();
+        assertEquals(3, image.getRefCount());
+        image.release();
+        image.release();
+        assertEquals(0, image.mCloseCount.get());
+        image.release();
+        assertEquals(1, image.mCloseCount.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void retain_failsAfterRelease() {
+        CountingImage image = new CountingImage();
+        image.release();
+        image.retain();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void release_failsWhenOverReleased() {
+        CountingImage image = new CountingImage();
+        image.release();
+        image.release();
+    }
+
+    @Test
+    public void release_fromParallelConsumersClosesOnce() throws Exception {
+        final CountingImage image = new CountingImage();
+        final int consumers = 8;
+        final CountDownLatch done = new CountDownLatch(consumers);
+        for (int i = 0; i < consumers; i++) {
+            image.retain();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    image.release();
+                    done.countDown();
+                }
+            }).start();
+        }
+        image.release();
+        done.await();
+        assertEquals(1, image.mCloseCount.get());
+    }
+
+    @Test
+    public void leakTracking_reportsUnreleasedImages() {
+        CodecImage.setLeakTrackingEnabled(true);
+        CountingImage leaked = CodecImage.track(new CountingImage());
+        CountingImage released = CodecImage.track(new CountingImage());
+        released.release();
+        assertEquals(1, CodecImage.getUnreleasedImages().size());
+        leaked.release();
+        assertEquals(0, CodecImage.getUnreleasedImages().size());
+    }
+
+    @Test
+    public void leakTracking_ignoresClosedImages() {
+        CodecImage.setLeakTrackingEnabled(true);
+        CountingImage image = CodecImage.track(new CountingImage());
+        image.close();
+        assertEquals(0, CodecImage.getUnreleasedImages().size());
+    }
+
+    @Test
+    public void leakTracking_ignoresImagesThatFailedToConstruct() {
+        CodecImage.setLeakTrackingEnabled(true);
+        try {
+            CodecImage.track(new BrokenImage());
+            fail("BrokenImage constructor should throw");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, CodecImage.getUnreleasedImages().size());
+    }
+}
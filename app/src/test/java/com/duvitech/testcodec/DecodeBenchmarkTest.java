@@ -0,0 +1,123 @@
+package com.duvitech.testcodec;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput benchmark of the decode pipeline on the host, using the synthetic
+ * decoder in place of a device codec. Results are printed to stdout and
+ * written as a {@link PerfReport} to {@code build/perf/decode-benchmark.json/.csv}.
+ * <p>
+ * The extraction benchmarks copy 4K and 8K frames with 1, 2, 4... workers up
+ * to the number of cores, to show how the row-band copy scales.
+ * </p>
+ */
+public class DecodeBenchmarkTest {
+    private static final int FRAMES = 30;
+    private static final int WARMUP_FRAMES = 10;
+    private static final File REPORT_BASE = new File("build/perf/decode-benchmark");
+
+    private static final int EXTRACT_REPEATS = 10;
+    // padded like many hardware decoders
+    private static final int STRIDE_ALIGNMENT = 256;
+
+    private static final PerfReport sReport = new PerfReport();
+
+    private static double decode(String name, SyntheticDecoder decoder) throws Exception {
+        FramePool pool = new FramePool(FrameMemoryBudget.getInstance(), 2);
+        // warm up the JIT on a separate run
+        DecodePipeline warmup = new DecodePipeline(decoder,
+                new SyntheticDecoder.Source(WARMUP_FRAMES, 30f), decoder.getWidth(),
+                decoder.getHeight(), ImageFormat.YUV_420_888, pool);
+        warmup.run(WARMUP_FRAMES);
+        decoder.stop();
+
+        DecodePipeline pipeline = new DecodePipeline(decoder,
+                new SyntheticDecoder.Source(FRAMES, 30f), decoder.getWidth(),
+                decoder.getHeight(), ImageFormat.YUV_420_888, pool);
+        assertEquals(FRAMES, pipeline.run(FRAMES));
+        decoder.release();
+        pool.clear();
+        sReport.add(PerfReport.Entry.from(decoder.getName(), name, pipeline));
+        REPORT_BASE.getParentFile().mkdirs();
+        sReport.write(REPORT_BASE);
+        System.out.println(String.format("%-28s %8.1f fps %10d bytes copied",
+                name, pipeline.getFramesPerSecond(), pipeline.getBytesCopied()));
+        return pipeline.getFramesPerSecond();
+    }
+
+    @Test
+    public void decode1080p() throws Exception {
+        assertTrue(decode("1080p planar", new SyntheticDecoder(1920, 1080)) > 0);
+        assertTrue(decode("1080p semi-planar padded", new SyntheticDecoder(1920, 1080)
+                .setChromaPixelStride(2).setStridePadding(128)) > 0);
+    }
+
+    @Test
+    public void decodeWithLatency() throws Exception {
+        assertTrue(decode("720p 5ms latency", new SyntheticDecoder(1280, 720)
+                .setFrameLatencyUs(5000).setBufferCounts(2, 2)) > 0);
+    }
+
+    /**
+     * Time the extraction of a semi-planar frame on pools of growing size.
+     */
+    private static void extractScaling(String name, int width, int height) {
+        int rowStride = (width + STRIDE_ALIGNMENT - 1) / STRIDE_ALIGNMENT * STRIDE_ALIGNMENT;
+        ByteBuffer luma = ByteBuffer.allocateDirect(rowStride * height);
+        ByteBuffer chroma = ByteBuffer.allocateDirect(rowStride * height / 2);
+        // interleaved chroma, Cr one byte after Cb
+        chroma.position(1);
+        ByteBuffer cr = chroma.slice();
+        chroma.position(0);
+        ByteBuffer[] buffers = { luma, chroma, cr };
+        int[] rowStrides = { rowStride, rowStride, rowStride };
+        int[] pixelStrides = { 1, 2, 2 };
+        byte[] data = new byte[FrameExtractor.getFrameSize(width, height,
+                ImageFormat.YUV_420_888)];
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        double serialNs = 0;
+        for (int workers = 1; ; workers = Math.min(workers * 2, cores)) {
+            ForkJoinPool pool = new ForkJoinPool(workers);
+            try {
+                // warm up, then time
+                FrameExtractor.extractPlanes(buffers, rowStrides, pixelStrides,
+                        0, 0, width, height, data, pool, 0);
+                long start = System.nanoTime();
+                for (int i = 0; i < EXTRACT_REPEATS; i++) {
+                    assertEquals(data.length, FrameExtractor.extractPlanes(buffers, rowStrides,
+                            pixelStrides, 0, 0, width, height, data, pool, 0));
+                }
+                double frameNs = (double) (System.nanoTime() - start) / EXTRACT_REPEATS;
+                if (workers == 1) {
+                    serialNs = frameNs;
+                }
+                System.out.println(String.format("%-16s %2d worker(s) %8.2f ms/frame %6.2fx",
+                        name, workers, frameNs / 1e6, serialNs / frameNs));
+            } finally {
+                pool.shutdown();
+            }
+            if (workers == cores) {
+                break;
+            }
+        }
+    }
+
+    @Test
+    public void extract4K() {
+        extractScaling("extract 4K", 3840, 2160);
+    }
+
+    @Test
+    public void extract8K() {
+        extractScaling("extract 8K", 7680, 4320);
+    }
+}
@@ -0,0 +1,110 @@
+package com.duvitech.testcodec;
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests running {@link DecodePipeline} against {@link SyntheticDecoder}.
+ */
+public class DecodePipelineTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final float FRAME_RATE = 30f;
+
+    private final FramePool mPool = new FramePool(new FrameMemoryBudget(1 << 20), 2);
+
+    private static DecodePipeline pipeline(SyntheticDecoder decoder, int frames, FramePool pool) {
+        return new DecodePipeline(decoder, new SyntheticDecoder.Source(frames, FRAME_RATE),
+                decoder.getWidth(), decoder.getHeight(), ImageFormat.YUV_420_888, pool);
+    }
+
+    /**
+     * Decode a stream and check every frame against the synthetic content.
+     */
+    private void checkFrames(final SyntheticDecoder decoder) throws Exception {
+        final List<Long> timestamps = new ArrayList<Long>();
+        DecodePipeline pipeline = pipeline(decoder, 10, mPool);
+        pipeline.setFrameListener(new DecodePipeline.FrameListener() {
+            @Override
+            public void onFrame(CodecImage frame, byte[] data, int frameNumber,
+                    long presentationTimeUs) throws Exception {
+                // the pipeline hands over the frame it packed for validation
+                assertArrayEquals(decoder.getExpectedFrame(frameNumber), data);
+                timestamps.add(presentationTimeUs);
+            }
+        });
+        assertEquals(10, pipeline.run(100));
+        decoder.stop();
+        decoder.release();
+        assertEquals(10, timestamps.size());
+        assertEquals(0L, (long) timestamps.get(0));
+        assertEquals((long) (9 * 1000000L / FRAME_RATE), (long) timestamps.get(9));
+        assertEquals(10L * WIDTH * HEIGHT * 3 / 2, pipeline.getBytesCopied());
+    }
+
+    @Test
+    public void planarFrames_matchSyntheticContent() throws Exception {
+        checkFrames(new SyntheticDecoder(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void paddedSemiPlanarFrames_matchSyntheticContent() throws Exception {
+        checkFrames(new SyntheticDecoder(WIDTH, HEIGHT)
+                .setPattern(SyntheticDecoder.PATTERN_GRADIENT)
+                .setStridePadding(32)
+                .setChromaPixelStride(2)
+                .setBufferCounts(1, 1));
+    }
+
+    @Test
+    public void run_stopsAtMaxFrames() throws Exception {
+        SyntheticDecoder decoder = new SyntheticDecoder(WIDTH, HEIGHT);
+        DecodePipeline pipeline = pipeline(decoder, 100, mPool);
+        assertEquals(5, pipeline.run(5));
+        decoder.release();
+    }
+
+    @Test
+    public void frameLatency_boundsThroughput() throws Exception {
+        SyntheticDecoder decoder = new SyntheticDecoder(WIDTH, HEIGHT).setFrameLatencyUs(2000);
+        DecodePipeline pipeline = pipeline(decoder, 10, mPool);
+        assertEquals(10, pipeline.run(100));
+        decoder.release();
+        assertTrue(pipeline.getElapsedNs() >= 10 * 2000000L);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sizeMismatch_failsValidation() throws Exception {
+        SyntheticDecoder decoder = new SyntheticDecoder(WIDTH, HEIGHT);
+        new DecodePipeline(decoder, new SyntheticDecoder.Source(1, FRAME_RATE),
+                WIDTH * 2, HEIGHT, ImageFormat.YUV_420_888, mPool).run(1);
+    }
+
+    @Test
+    public void framesRetainedByListener_holdOutputBuffers() throws Exception {
+        final List<CodecImage> held = new ArrayList<CodecImage>();
+        SyntheticDecoder decoder = new SyntheticDecoder(WIDTH, HEIGHT).setBufferCounts(2, 2);
+        DecodePipeline pipeline = pipeline(decoder, 10, mPool);
+        pipeline.setFrameListener(new DecodePipeline.FrameListener() {
+            @Override
+            public void onFrame(CodecImage frame, byte[] data, int frameNumber,
+                    long presentationTimeUs) {
+                held.add(frame.retain());
+            }
+        });
+        // both output buffers stay with the listener, so decoding stalls after two frames
+        assertEquals(2, pipeline.run(2));
+        FrameDecoder.BufferInfo info = new FrameDecoder.BufferInfo();
+        assertEquals(FrameDecoder.INFO_TRY_AGAIN_LATER, decoder.dequeueOutputBuffer(info, 0));
+        held.get(0).release();
+        assertTrue(decoder.dequeueOutputBuffer(info, 0) >= 0);
+        held.get(1).release();
+        decoder.release();
+    }
+}
@@ -0,0 +1,88 @@
+package com.duvitech.testcodec;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for the serial and row-band parallel copies of {@link FrameExtractor}.
+ */
+public class FrameExtractorTest {
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 600;
+    private static final int ROW_STRIDE = 1024;
+
+    // more workers than cores is fine, the bands just take turns
+    private final ForkJoinPool mPool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        mPool.shutdown();
+    }
+
+    private static ByteBuffer plane(int rows, int seed) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ROW_STRIDE * rows);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (i * 31 + seed));
+        }
+        return buffer;
+    }
+
+    /**
+     * Copy a cropped frame serially and in parallel and check both agree.
+     *
+     * @param chromaPixelStride 1 for planar chroma, 2 for interleaved chroma
+     *                          sharing one buffer.
+     */
+    private void checkParallelMatchesSerial(int chromaPixelStride, int left, int top,
+            int width, int height) {
+        ByteBuffer[] buffers = new ByteBuffer[3];
+        buffers[0] = plane(HEIGHT, 0);
+        if (chromaPixelStride == 1) {
+            buffers[1] = plane(HEIGHT / 2, 1);
+            buffers[2] = plane(HEIGHT / 2, 2);
+        } else {
+            ByteBuffer chroma = plane(HEIGHT / 2, 1);
+            buffers[1] = chroma;
+            chroma.position(1);
+            buffers[2] = chroma.slice();
+            chroma.position(0);
+        }
+        int[] rowStrides = { ROW_STRIDE, ROW_STRIDE, ROW_STRIDE };
+        int[] pixelStrides = { 1, chromaPixelStride, chromaPixelStride };
+        int size = width * height + 2 * (width / 2) * (height / 2);
+
+        byte[] serial = new byte[size];
+        assertEquals(size, FrameExtractor.extractPlanes(buffers, rowStrides, pixelStrides,
+                left, top, width, height, serial, mPool, Integer.MAX_VALUE));
+        byte[] parallel = new byte[size];
+        assertEquals(size, FrameExtractor.extractPlanes(buffers, rowStrides, pixelStrides,
+                left, top, width, height, parallel, mPool, 0));
+        assertArrayEquals(serial, parallel);
+        assertEquals(0, buffers[0].position());
+        // spot check the first and last luma samples of the crop
+        assertEquals(buffers[0].get(top * ROW_STRIDE + left), serial[0]);
+        assertEquals(buffers[0].get((top + height - 1) * ROW_STRIDE + left + width - 1),
+                serial[width * height - 1]);
+    }
+
+    @Test
+    public void parallel_planarFullFrame() {
+        checkParallelMatchesSerial(1, 0, 0, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void parallel_semiPlanarCropped() {
+        checkParallelMatchesSerial(2, 16, 42, 960, 526);
+    }
+
+    @Test
+    public void parallel_fallsBackForShortFrames() {
+        // fewer rows than two bands need, copied on the calling thread
+        checkParallelMatchesSerial(2, 0, 0, WIDTH, 100);
+    }
+}
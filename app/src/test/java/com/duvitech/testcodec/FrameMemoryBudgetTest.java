@@ -0,0 +1,171 @@
+package com.duvitech.testcodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for {@link FrameMemoryBudget} and {@link FramePool}.
+ */
+public class FrameMemoryBudgetTest {
+    @Test
+    public void reserveAndRelease_tracksPeak() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(100);
+        budget.reserve(40);
+        budget.reserve(60);
+        assertEquals(100, budget.getReservedBytes());
+        budget.release(70);
+        assertEquals(30, budget.getReservedBytes());
+        assertEquals(100, budget.getPeakBytes());
+        assertTrue(budget.getAverageBytes() <= 100);
+    }
+
+    @Test
+    public void tryReserve_timesOutWhenExhausted() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(100);
+        budget.reserve(80);
+        assertFalse(budget.tryReserve(40, 10));
+        assertEquals(80, budget.getReservedBytes());
+        assertEquals(1, budget.getWaitCount());
+    }
+
+    @Test
+    public void reserve_admitsOversizedFrameWhenIdle() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(100);
+        assertTrue(budget.tryReserve(500, 0));
+        assertFalse(budget.tryReserve(1, 0));
+    }
+
+    @Test
+    public void tryReserve_hugeTimeoutWaitsUntilReleased() throws Exception {
+        final FrameMemoryBudget budget = new FrameMemoryBudget(1000);
+        budget.reserve(800);
+        Thread releaser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                budget.release(800);
+            }
+        });
+        releaser.start();
+        // Long.MAX_VALUE ms used to overflow the deadline and time out at once
+        assertTrue(budget.tryReserve(800, Long.MAX_VALUE));
+        releaser.join();
+        assertEquals(800, budget.getReservedBytes());
+    }
+
+    @Test
+    public void reserve_blocksUntilReleased() throws Exception {
+        final FrameMemoryBudget budget = new FrameMemoryBudget(100);
+        budget.reserve(100);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                budget.release(100);
+            }
+        });
+        consumer.start();
+        assertTrue(budget.tryReserve(50, 5000));
+        consumer.join();
+        assertEquals(50, budget.getReservedBytes());
+    }
+
+    @Test
+    public void framePool_reusesBuffersWithoutReserving() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(1000);
+        FramePool pool = new FramePool(budget, 1);
+        byte[] first = pool.acquire(300);
+        pool.release(first);
+        assertSame(first, pool.acquire(300));
+        assertEquals(300, budget.getReservedBytes());
+        assertEquals(1, pool.getAllocationCount());
+
+        byte[] second = pool.acquire(300);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(300, budget.getReservedBytes());
+        pool.clear();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void framePool_reusesBuffersOfAlternatingSizes() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(10000);
+        FramePool pool = new FramePool(budget, 2);
+        // two sessions at different resolutions sharing the pool
+        for (int i = 0; i < 100; i++) {
+            pool.release(pool.acquire(300));
+            pool.release(pool.acquire(1000));
+        }
+        assertEquals(2, pool.getAllocationCount());
+        assertEquals(1300, budget.getReservedBytes());
+        pool.clear();
+        assertEquals(0, budget.getReservedBytes());
+    }
+
+    @Test
+    public void framePool_dropsIdleBuffersOfOtherSizesForRoom() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(1000);
+        FramePool pool = new FramePool(budget, 2, 1000, 50);
+        byte[] first = pool.acquire(300);
+        byte[] second = pool.acquire(300);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(600, budget.getReservedBytes());
+
+        // would time out if the idle 300 byte buffers kept their reservation
+        pool.acquire(800);
+        assertEquals(800, budget.getReservedBytes());
+    }
+
+    @Test
+    public void framePool_idleByteCapDropsLeastRecentlyUsedSize() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(10000);
+        FramePool pool = new FramePool(budget, 2, 1500, FramePool.DEFAULT_RESERVE_TIMEOUT_MS);
+        byte[] small = pool.acquire(300);
+        byte[] medium = pool.acquire(500);
+        byte[] large = pool.acquire(1000);
+        pool.release(small);
+        pool.release(medium);
+        // touch the small size so the medium one is least recently used
+        pool.release(pool.acquire(300));
+        pool.release(large);
+        assertEquals(1300, budget.getReservedBytes());
+
+        assertSame(small, pool.acquire(300));
+        assertSame(large, pool.acquire(1000));
+        assertEquals(3, pool.getAllocationCount());
+        pool.acquire(500);
+        assertEquals(4, pool.getAllocationCount());
+    }
+
+    @Test
+    public void framePool_fullSizeListDropsReleasedBuffer() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(10000);
+        FramePool pool = new FramePool(budget, 1);
+        byte[] old = pool.acquire(300);
+        byte[] current = pool.acquire(300);
+        pool.release(old);
+        pool.release(current);
+        assertSame(old, pool.acquire(300));
+        assertEquals(300, budget.getReservedBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void framePool_failsWhenBudgetStaysExhausted() throws Exception {
+        FrameMemoryBudget budget = new FrameMemoryBudget(1000);
+        FramePool pool = new FramePool(budget, 1, 50);
+        pool.acquire(800);
+        // nobody releases the first buffer, waiting forever would hang
+        pool.acquire(800);
+    }
+}
@@ -0,0 +1,152 @@
+package com.duvitech.testcodec;
+
+import android.graphics.ImageFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for {@link FrameSpillStore}.
+ */
+public class FrameSpillStoreTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 4;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = File.createTempFile("spill", null);
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static byte[] frame(int seed) {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seed + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void appendAndReopen_readsFramesBack() throws Exception {
+        // two frames per segment, so the third one rolls over into a new segment
+        FrameSpillStore store = FrameSpillStore.create(mDir, FRAME_SIZE * 2);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, store.append("OMX.google.h264.decoder", "swirl", i, i * 1000L,
+                    ImageFormat.YUV_420_888, WIDTH, HEIGHT, frame(i), 0, FRAME_SIZE));
+        }
+        store.close();
+
+        store = FrameSpillStore.open(mDir);
+        try {
+            assertEquals(3, store.getFrameCount());
+            FrameSpillStore.Entry entry = store.getEntry(2);
+            assertEquals("OMX.google.h264.decoder", entry.getCodecName());
+            assertEquals("swirl", entry.getAssetName());
+            assertEquals(2, entry.getFrameNumber());
+            assertEquals(2000L, entry.getPtsUs());
+
+            CodecImage image = store.getImage(2);
+            assertEquals(WIDTH, image.getWidth());
+            assertEquals(2000000L, image.getTimestamp());
+            CodecImage.Plane[] planes = image.getPlanes();
+            assertEquals(3, planes.length);
+            assertEquals(WIDTH / 2, planes[1].getRowStride());
+
+            byte[] expected = frame(2);
+            byte[] actual = new byte[FRAME_SIZE];
+            int offset = 0;
+            for (CodecImage.Plane plane : planes) {
+                ByteBuffer buffer = plane.getBuffer();
+                assertTrue(buffer.isDirect());
+                int length = buffer.remaining();
+                buffer.get(actual, offset, length);
+                offset += length;
+            }
+            assertEquals(FRAME_SIZE, offset);
+            assertArrayEquals(expected, actual);
+            image.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void close_trimsSegmentsToUsedSize() throws Exception {
+        FrameSpillStore store = FrameSpillStore.create(mDir, FRAME_SIZE * 4);
+        // the large fourth frame does not fit the room left, so the first
+        // segment is trimmed on rollover and the second one on close
+        for (int i = 0; i < 3; i++) {
+            store.append("codec", "asset", i, i, ImageFormat.YUV_420_888,
+                    WIDTH, HEIGHT, frame(i), 0, FRAME_SIZE);
+        }
+        store.append("codec", "asset", 3, 3, ImageFormat.YUV_420_888,
+                WIDTH * 2, HEIGHT * 2, new byte[FRAME_SIZE * 4], 0, FRAME_SIZE * 4);
+        store.append("codec", "asset", 4, 4, ImageFormat.YUV_420_888,
+                WIDTH, HEIGHT, frame(4), 0, FRAME_SIZE);
+        store.close();
+        assertEquals(FRAME_SIZE * 3, new File(mDir, "segment-00000.bin").length());
+        assertEquals(FRAME_SIZE * 4, new File(mDir, "segment-00001.bin").length());
+        assertEquals(FRAME_SIZE, new File(mDir, "segment-00002.bin").length());
+
+        store = FrameSpillStore.open(mDir);
+        try {
+            assertEquals(5, store.getFrameCount());
+            ByteBuffer luma = store.getImage(4).getPlanes()[0].getBuffer();
+            assertEquals(frame(4)[WIDTH * HEIGHT - 1], luma.get(WIDTH * HEIGHT - 1));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void getImage_readsFilledSegmentsWhileWriting() throws Exception {
+        FrameSpillStore store = FrameSpillStore.create(mDir, FRAME_SIZE * 2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                store.append("codec", "asset", i, i, ImageFormat.YUV_420_888,
+                        WIDTH, HEIGHT, frame(i), 0, FRAME_SIZE);
+            }
+            // frames 0 to 3 are in segments remapped read-only at their trimmed size
+            for (int i = 0; i < 5; i++) {
+                ByteBuffer luma = store.getImage(i).getPlanes()[0].getBuffer();
+                assertEquals(frame(i)[0], luma.get(0));
+                assertEquals(frame(i)[WIDTH * HEIGHT - 1], luma.get(WIDTH * HEIGHT - 1));
+            }
+            assertEquals(FRAME_SIZE * 2, new File(mDir, "segment-00001.bin").length());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void append_failsOnReadOnlyStore() throws Exception {
+        FrameSpillStore.create(mDir, FRAME_SIZE).close();
+        FrameSpillStore store = FrameSpillStore.open(mDir);
+        try {
+            store.append("codec", "asset", 0, 0, ImageFormat.YUV_420_888,
+                    WIDTH, HEIGHT, frame(0), 0, FRAME_SIZE);
+        } finally {
+            store.close();
+        }
+    }
+}
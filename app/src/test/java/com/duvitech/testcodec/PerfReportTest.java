@@ -0,0 +1,155 @@
+package com.duvitech.testcodec;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for {@link PerfReport}, {@link PerfReportComparator} and
+ * {@link LatencyStats}.
+ */
+public class PerfReportTest {
+
+    private static PerfReport.Entry entry(String codec, double fps, double intervalStdDevUs,
+            double latencyUs, double latencyStdDevUs) {
+        return new PerfReport.Entry(codec, "swirl_1920x1080", 100, fps, 12.5,
+                latencyUs, latencyUs * 1.5, latencyUs, latencyStdDevUs,
+                1e6 / fps, intervalStdDevUs, 311040000L, 2);
+    }
+
+    /**
+     * Entry with 1000 latency samples around {@code latencyUs}, every
+     * {@code slowEvery}th frame taking {@code slowUs} instead if
+     * {@code slowEvery} is positive.
+     */
+    private static PerfReport.Entry sampledEntry(long seed, long latencyUs, int slowEvery,
+            long slowUs) {
+        Random random = new Random(seed);
+        LatencyStats stats = new LatencyStats();
+        long[] samples = new long[1000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = slowEvery > 0 && i % slowEvery == slowEvery - 1
+                    ? slowUs : latencyUs + Math.round(random.nextGaussian() * 900);
+            stats.add(samples[i]);
+        }
+        return new PerfReport.Entry("codec", "swirl_1920x1080", samples.length, 240, 12.5,
+                stats.getPercentile(50), stats.getPercentile(99), stats.getMean(),
+                stats.getStdDev(), 1e6 / 240, 300, 311040000L, 2, samples);
+    }
+
+    private static void assertEntriesEqual(PerfReport.Entry expected, PerfReport.Entry actual) {
+        assertEquals(expected.getCodecName(), actual.getCodecName());
+        assertEquals(expected.getAssetName(), actual.getAssetName());
+        assertEquals(expected.getFrames(), actual.getFrames());
+        assertEquals(expected.getFps(), actual.getFps(), 1e-3);
+        assertEquals(expected.getSetupMs(), actual.getSetupMs(), 1e-3);
+        assertEquals(expected.getLatencyP99Us(), actual.getLatencyP99Us(), 1e-3);
+        assertEquals(expected.getIntervalStdDevUs(), actual.getIntervalStdDevUs(), 1e-3);
+        assertEquals(expected.getBytesCopied(), actual.getBytesCopied());
+        assertEquals(expected.getAllocations(), actual.getAllocations());
+        assertArrayEquals(expected.getLatencySamplesUs(), actual.getLatencySamplesUs());
+    }
+
+    @Test
+    public void jsonAndCsv_roundTrip() throws Exception {
+        PerfReport report = new PerfReport();
+        report.add(entry("OMX.google.h264.decoder", 240, 300, 8000, 900));
+        report.add(entry("OMX.vendor.avc, \"secure\"", 480, 150, 4000, 500));
+        report.add(sampledEntry(1, 8000, 50, 100000));
+
+        StringWriter json = new StringWriter();
+        report.writeJson(json);
+        StringWriter csv = new StringWriter();
+        report.writeCsv(csv);
+        PerfReport fromJson = PerfReport.readJson(new StringReader(json.toString()));
+        PerfReport fromCsv = PerfReport.readCsv(new StringReader(csv.toString()));
+
+        assertEquals(3, fromJson.getEntries().size());
+        assertEquals(3, fromCsv.getEntries().size());
+        for (int i = 0; i < 3; i++) {
+            assertEntriesEqual(report.getEntries().get(i), fromJson.getEntries().get(i));
+            assertEntriesEqual(report.getEntries().get(i), fromCsv.getEntries().get(i));
+        }
+    }
+
+    @Test
+    public void comparator_flagsSignificantRegressions() {
+        PerfReport baseline = new PerfReport();
+        baseline.add(entry("slower", 240, 300, 8000, 900));
+        baseline.add(entry("noisy", 240, 4000, 8000, 15000));
+        PerfReport current = new PerfReport();
+        current.add(entry("slower", 200, 300, 12000, 900));
+        // same size of change, but buried in noise
+        current.add(entry("noisy", 200, 4000, 12000, 15000));
+
+        List<PerfReportComparator.Regression> regressions =
+                new PerfReportComparator().compare(baseline, current);
+        assertEquals(3, regressions.size());
+        for (PerfReportComparator.Regression regression : regressions) {
+            assertEquals("slower", regression.getCodecName());
+        }
+        assertEquals(PerfReportComparator.METRIC_THROUGHPUT, regressions.get(0).getMetric());
+        assertEquals(1 / 6.0, regressions.get(0).getChange(), 1e-6);
+    }
+
+    @Test
+    public void comparator_flagsTailRegression() {
+        PerfReport baseline = new PerfReport();
+        baseline.add(sampledEntry(1, 8000, 0, 0));
+        PerfReport current = new PerfReport();
+        // faster on most frames, but 1 frame in 50 stalls for 100 ms: p99
+        // explodes while the mean hardly moves and the spread hides it
+        current.add(sampledEntry(2, 6500, 50, 100000));
+
+        List<PerfReportComparator.Regression> regressions =
+                new PerfReportComparator().compare(baseline, current);
+        assertEquals(1, regressions.size());
+        assertEquals(PerfReportComparator.METRIC_LATENCY_P99, regressions.get(0).getMetric());
+        assertEquals(100000, regressions.get(0).getCurrent(), 0);
+
+        PerfReport.Entry base = baseline.getEntries().get(0);
+        PerfReport.Entry cur = current.getEntries().get(0);
+        assertTrue(PerfReportComparator.welchT(base.getLatencyMeanUs(),
+                base.getLatencyStdDevUs(), base.getFrames(), cur.getLatencyMeanUs(),
+                cur.getLatencyStdDevUs(), cur.getFrames())
+                < PerfReportComparator.DEFAULT_MIN_T_SCORE);
+    }
+
+    @Test
+    public void comparator_ignoresTailNoise() {
+        PerfReport baseline = new PerfReport();
+        baseline.add(sampledEntry(1, 8000, 0, 0));
+        PerfReport current = new PerfReport();
+        current.add(sampledEntry(2, 8000, 0, 0));
+        assertTrue(new PerfReportComparator().compare(baseline, current).isEmpty());
+    }
+
+    @Test
+    public void comparator_ignoresImprovements() {
+        PerfReport baseline = new PerfReport();
+        baseline.add(entry("codec", 200, 300, 12000, 900));
+        PerfReport current = new PerfReport();
+        current.add(entry("codec", 240, 300, 8000, 900));
+        assertTrue(new PerfReportComparator().compare(baseline, current).isEmpty());
+    }
+
+    @Test
+    public void latencyStats_percentiles() {
+        LatencyStats stats = new LatencyStats();
+        for (int i = 100; i >= 1; i--) {
+            stats.add(i);
+        }
+        assertEquals(100, stats.getCount());
+        assertEquals(50, stats.getPercentile(50));
+        assertEquals(99, stats.getPercentile(99));
+        assertEquals(100, stats.getPercentile(100));
+        assertEquals(50.5, stats.getMean(), 1e-9);
+        stats.add(1000);
+        assertEquals(1000, stats.getPercentile(100));
+    }
+}
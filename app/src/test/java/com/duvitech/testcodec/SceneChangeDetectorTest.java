@@ -0,0 +1,130 @@
+package com.duvitech.testcodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Host tests for {@link SceneChangeDetector}.
+ */
+public class SceneChangeDetectorTest {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    // padded like many hardware decoders
+    private static final int ROW_STRIDE = 2048;
+
+    /**
+     * Diagonal luma gradient shifted right by {@code shift} pixels, or its
+     * negative if {@code invert} is set.
+     */
+    private static ByteBuffer frame(int shift, boolean invert) {
+        ByteBuffer luma = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int value = ((x - shift) / 8 + y / 8) & 0xff;
+                luma.put(y * ROW_STRIDE + x, (byte) (invert ? 255 - value : value));
+            }
+        }
+        return luma;
+    }
+
+    /**
+     * Texture of random 32x32 cells panned right by {@code shift} pixels, which
+     * changes nearly every block but keeps the histogram.
+     */
+    private static ByteBuffer texture(int shift) {
+        ByteBuffer luma = ByteBuffer.allocateDirect(ROW_STRIDE * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int cell = ((x - shift + (1 << 16)) / 32) * 7919 + (y / 32) * 104729;
+                cell ^= cell >>> 13;
+                cell *= 0x5bd1e995;
+                cell ^= cell >>> 15;
+                luma.put(y * ROW_STRIDE + x, (byte) cell);
+            }
+        }
+        return luma;
+    }
+
+    private static SceneChangeDetector.Result process(
+            SceneChangeDetector detector, ByteBuffer luma, long timestamp) {
+        return detector.process(luma, ROW_STRIDE, 1, 0, 0, WIDTH, HEIGHT, timestamp);
+    }
+
+    @Test
+    public void firstFrame_startsScene() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        SceneChangeDetector.Result result = process(detector, frame(0, false), 0);
+        assertTrue(result.isSceneCut());
+        assertEquals(0, result.getFrameNumber());
+    }
+
+    @Test
+    public void staticFrames_haveNoActivity() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        ByteBuffer luma = frame(0, false);
+        process(detector, luma, 0);
+        SceneChangeDetector.Result result = process(detector, luma, 1);
+        assertFalse(result.isSceneCut());
+        assertEquals(0f, result.getActivity(), 0f);
+        assertEquals(0f, result.getHistogramDistance(), 0f);
+    }
+
+    @Test
+    public void motion_raisesActivityWithoutCut() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        SceneChangeDetector.Result result = null;
+        for (int i = 0; i < 4; i++) {
+            result = process(detector, frame(i * 16, false), i);
+        }
+        assertFalse(result.isSceneCut());
+        assertTrue(result.getActivity() > 0);
+    }
+
+    @Test
+    public void sustainedFastPan_isNotSceneCut() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        assertTrue(process(detector, texture(0), 0).isSceneCut());
+        for (int i = 1; i < 8; i++) {
+            SceneChangeDetector.Result result = process(detector, texture(i * 40), i);
+            assertTrue(result.toString(), result.getActivity() > 0.1f);
+            assertFalse(result.toString(), result.isSceneCut());
+        }
+    }
+
+    @Test
+    public void contentChange_isSceneCut() {
+        SceneChangeDetector detector = new SceneChangeDetector();
+        process(detector, frame(0, false), 0);
+        process(detector, frame(16, false), 1);
+        SceneChangeDetector.Result result = process(detector, frame(16, true), 2);
+        assertTrue(result.isSceneCut());
+        assertEquals(2, result.getFrameNumber());
+    }
+
+    @Test
+    public void parallelBands_matchSingleThread() {
+        SceneChangeDetector serial = new SceneChangeDetector(
+                SceneChangeDetector.DEFAULT_CUT_THRESHOLD, false /* parallel */);
+        // 4 bands whatever the core count, more workers than cores just take turns
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            SceneChangeDetector parallel = new SceneChangeDetector(
+                    SceneChangeDetector.DEFAULT_CUT_THRESHOLD, pool);
+            for (int i = 0; i < 3; i++) {
+                ByteBuffer luma = frame(i * 24, i == 2);
+                SceneChangeDetector.Result expected = process(serial, luma, i);
+                SceneChangeDetector.Result actual = process(parallel, luma, i);
+                assertEquals(expected.getActivity(), actual.getActivity(), 0f);
+                assertEquals(expected.getHistogramDistance(),
+                        actual.getHistogramDistance(), 0f);
+                assertEquals(expected.isSceneCut(), actual.isSceneCut());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}